@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.google.android.collect.Maps;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * In-memory index of directory sizes on one volume, so that
+ * {@link StorageMeasurement} only asks the container service again for the
+ * directories that changed since they were last measured.
+ * <p>
+ * An entry is only kept while a {@link FileObserver} watches every directory
+ * below it, and any event drops the entry. Nothing is written to disk: a
+ * size from an earlier run of Settings can't be checked without walking and
+ * stating the whole subtree, which costs about as much as measuring it.
+ * <p>
+ * Entries may nest, e.g. the user storage root and DCIM below it. FileObserver
+ * keeps one inotify watch per path and process: a second observer on a path
+ * takes over its events, and stopping either one removes the kernel watch.
+ * So every path gets one {@link SharedObserver}, used by all the watches that
+ * cover it and stopped when the last of them stops.
+ */
+class DirectorySizeIndex {
+    private static final String TAG = "DirectorySizeIndex";
+
+    /**
+     * Settings runs as the system uid, which shares the kernel's per-uid
+     * inotify watch limit (max_user_watches, 8192 by default) with
+     * system_server. Subtrees with more directories than this are not
+     * indexed, and the indexes of the Settings process never hold more than
+     * {@link #MAX_WATCHED_DIRS} watches in total, whatever the number of
+     * volumes and users.
+     */
+    private static final int MAX_SUBTREE_DIRS = 256;
+    private static final int MAX_WATCHED_DIRS = 1024;
+
+    private static final int WATCH_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MODIFY | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.MOVE_SELF;
+
+    private static final Object sObserverLock = new Object();
+
+    @GuardedBy("sObserverLock")
+    private static final HashMap<String, SharedObserver> sObservers = Maps.newHashMap();
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final HashMap<String, Entry> mEntries = Maps.newHashMap();
+
+    private static class Entry {
+        final long mSize;
+        final Watch mWatch;
+
+        Entry(long size, Watch watch) {
+            mSize = size;
+            mWatch = watch;
+        }
+    }
+
+    /**
+     * The only observer of one path in this process, passing its events on to
+     * every watch that covers the path.
+     */
+    private static class SharedObserver extends FileObserver {
+        final String mPath;
+        @GuardedBy("sObserverLock")
+        final ArrayList<Watch> mWatches = new ArrayList<Watch>();
+
+        SharedObserver(String path) {
+            super(path, WATCH_EVENTS);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            final Watch[] watches;
+            synchronized (sObserverLock) {
+                watches = mWatches.toArray(new Watch[mWatches.size()]);
+            }
+            for (Watch watch : watches) {
+                watch.onEvent();
+            }
+        }
+    }
+
+    /**
+     * Observers on every directory of one subtree. Started before the subtree
+     * is measured, so that changes made during the measurement are not lost.
+     */
+    class Watch {
+        final String mPath;
+        @GuardedBy("sObserverLock")
+        final ArrayList<SharedObserver> mObservers = new ArrayList<SharedObserver>();
+        volatile boolean mChanged;
+
+        Watch(String path) {
+            mPath = path;
+        }
+
+        void onEvent() {
+            mChanged = true;
+            synchronized (mLock) {
+                final Entry entry = mEntries.get(mPath);
+                if (entry != null && entry.mWatch == this) {
+                    mEntries.remove(mPath);
+                }
+            }
+            stop();
+        }
+
+        /**
+         * Adds the given directory to this watch, sharing its observer if
+         * another watch already has one. Returns {@code false} if this would
+         * go over {@link #MAX_SUBTREE_DIRS} or {@link #MAX_WATCHED_DIRS}.
+         */
+        boolean add(String path) {
+            synchronized (sObserverLock) {
+                if (mObservers.size() >= MAX_SUBTREE_DIRS) {
+                    return false;
+                }
+                SharedObserver observer = sObservers.get(path);
+                if (observer == null) {
+                    if (sObservers.size() >= MAX_WATCHED_DIRS) {
+                        return false;
+                    }
+                    observer = new SharedObserver(path);
+                    sObservers.put(path, observer);
+                    observer.startWatching();
+                }
+                observer.mWatches.add(this);
+                mObservers.add(observer);
+                return true;
+            }
+        }
+
+        /**
+         * Releases the directories of this watch. Observers still used by
+         * other watches keep running.
+         */
+        void stop() {
+            synchronized (sObserverLock) {
+                for (SharedObserver observer : mObservers) {
+                    observer.mWatches.remove(this);
+                    if (observer.mWatches.isEmpty()) {
+                        observer.stopWatching();
+                        sObservers.remove(observer.mPath);
+                    }
+                }
+                mObservers.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the indexed size of the given directory, or -1 if it has to be
+     * measured.
+     */
+    long getSize(File dir) {
+        synchronized (mLock) {
+            final Entry entry = mEntries.get(dir.getPath());
+            if (entry == null || entry.mWatch.mChanged) {
+                return -1;
+            }
+            return entry.mSize;
+        }
+    }
+
+    /**
+     * Starts watching the directories below the given one. Returns
+     * {@code null} if the subtree is too large to be indexed.
+     */
+    Watch startWatching(File dir) {
+        final Watch watch = new Watch(dir.getPath());
+        final ArrayList<File> stack = new ArrayList<File>();
+        stack.add(dir);
+        while (!stack.isEmpty()) {
+            final File current = stack.remove(stack.size() - 1);
+            if (!watch.add(current.getPath())) {
+                if (StorageMeasurement.LOGV) {
+                    Log.v(TAG, "Not indexing " + dir + ", too many directories");
+                }
+                watch.stop();
+                return null;
+            }
+
+            final File[] children = current.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    stack.add(child);
+                }
+            }
+        }
+        return watch;
+    }
+
+    /**
+     * Records the size measured for the subtree of the given watch, unless it
+     * changed since the watch was started.
+     */
+    void putSize(Watch watch, long size) {
+        if (watch == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (watch.mChanged) {
+                watch.stop();
+                return;
+            }
+            final Entry old = mEntries.put(watch.mPath, new Entry(size, watch));
+            if (old != null && old.mWatch != watch) {
+                old.mWatch.stop();
+            }
+        }
+    }
+}
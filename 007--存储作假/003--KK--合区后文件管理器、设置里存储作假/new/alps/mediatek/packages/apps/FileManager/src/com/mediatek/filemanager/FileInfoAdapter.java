@@ -40,10 +40,15 @@ package com.mediatek.filemanager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.media.ThumbnailUtils;
+import android.os.AsyncTask;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.webkit.MimeTypeMap;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -54,7 +59,13 @@ import com.mediatek.filemanager.utils.LogUtils;
 import com.mediatek.filemanager.utils.ThemeUtils;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import android.os.SystemProperties;
 
 import com.mediatek.common.storage.IStorageManagerEx;
@@ -71,6 +82,9 @@ public class FileInfoAdapter extends BaseAdapter {
     public static final int MODE_NORMAL = 0;
     public static final int MODE_EDIT = 1;
     public static final int MODE_SEARCH = 2;
+    private static final String DEFAULT_SIZE_MULT = "5.125";
+    /** ro.file.sizemult is read-only, so it is parsed once by getSizeMult(). */
+    private static volatile float sSizeMult = -1f;
 
     private Context mContext;
     private final Resources mResources;
@@ -81,6 +95,41 @@ public class FileInfoAdapter extends BaseAdapter {
     private int mMode = MODE_NORMAL;
     FileManagerService mService = null;
 
+    /**
+     * Image thumbnails and mount point sizes are loaded one at a time off the UI thread, so
+     * that rows scrolled out of view can still be cancelled before their turn comes.
+     */
+    private static final Executor BIND_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final int THUMBNAIL_CACHE_DIVIDER = 16;
+
+    /**
+     * Image thumbnails by path, modification time and size, so that a file changed in place
+     * gets a new thumbnail. Sized to a part of the heap.
+     */
+    private final LruCache<String, Bitmap> mThumbnailCache = new LruCache<String, Bitmap>(
+            (int) (Runtime.getRuntime().maxMemory() / THUMBNAIL_CACHE_DIVIDER)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    /** Positions of the items in mFileInfoList, valid while mIndexValid is set. */
+    private final HashMap<FileInfo, Integer> mPositions = new HashMap<FileInfo, Integer>();
+    /** Positions of the checked items in mFileInfoList, valid while mIndexValid is set. */
+    private final BitSet mCheckedPositions = new BitSet();
+    private boolean mIndexValid = false;
+
+    /** The "size" label, followed by a space, put in front of every file size. */
+    private final String mSizeLabel;
+    /** Size texts of mount points by path, only used on the UI thread. */
+    private final HashMap<String, String> mSizeTexts = new HashMap<String, String>();
+    /** Mount points whose size text was built since the data set last changed. */
+    private final HashSet<String> mFreshSizeTexts = new HashSet<String>();
+    /** Mount points whose size text is being built. */
+    private final HashSet<String> mPendingSizeTexts = new HashSet<String>();
+    private int mSizeTextGeneration = 0;
+
     /**
      * The constructor to construct a FileInfoAdapter.
      * 
@@ -96,6 +145,7 @@ public class FileInfoAdapter extends BaseAdapter {
         mService = fileManagerService;
         mFileInfoManager = fileInfoManager;
         mFileInfoList = fileInfoManager.getShowFileList();
+        mSizeLabel = mResources.getString(R.string.size) + " ";
     }
 
     /**
@@ -105,11 +155,14 @@ public class FileInfoAdapter extends BaseAdapter {
      * @return the index of the item in the listView.
      */
     public int getPosition(FileInfo fileInfo) {
-        return mFileInfoList.indexOf(fileInfo);
+        ensureIndex();
+        Integer position = mPositions.get(fileInfo);
+        return position != null ? position : -1;
     }
 
     /**
-     * This method sets the item's check boxes
+     * This method sets the item's check boxes. Check states are only changed through the
+     * adapter, which keeps the checked positions in step with the items.
      * 
      * @param id the id of the item
      * @param checked the checked state
@@ -117,7 +170,9 @@ public class FileInfoAdapter extends BaseAdapter {
     public void setChecked(int id, boolean checked) {
         FileInfo checkInfo = mFileInfoList.get(id);
         if (checkInfo != null) {
+            ensureIndex();
             checkInfo.setChecked(checked);
+            mCheckedPositions.set(id, checked);
         }
     }
 
@@ -127,10 +182,16 @@ public class FileInfoAdapter extends BaseAdapter {
      * @param checked the checked state
      */
     public void setAllItemChecked(boolean checked) {
+        ensureIndex();
         for (FileInfo info : mFileInfoList) {
             info.setChecked(checked);
         }
-        notifyDataSetChanged();
+        if (checked) {
+            mCheckedPositions.set(0, mFileInfoList.size());
+        } else {
+            mCheckedPositions.clear();
+        }
+        super.notifyDataSetChanged();
     }
 
     /**
@@ -139,13 +200,8 @@ public class FileInfoAdapter extends BaseAdapter {
      * @return the number of the checked items
      */
     public int getCheckedItemsCount() {
-        int count = 0;
-        for (FileInfo fileInfo : mFileInfoList) {
-            if (fileInfo.isChecked()) {
-                count++;
-            }
-        }
-        return count;
+        ensureIndex();
+        return mCheckedPositions.cardinality();
     }
 
     /**
@@ -154,11 +210,12 @@ public class FileInfoAdapter extends BaseAdapter {
      * @return the list of the checked items
      */
     public List<FileInfo> getCheckedFileInfoItemsList() {
-        List<FileInfo> fileInfoCheckedList = new ArrayList<FileInfo>();
-        for (FileInfo fileInfo : mFileInfoList) {
-            if (fileInfo.isChecked()) {
-                fileInfoCheckedList.add(fileInfo);
-            }
+        ensureIndex();
+        List<FileInfo> fileInfoCheckedList = new ArrayList<FileInfo>(
+                mCheckedPositions.cardinality());
+        for (int i = mCheckedPositions.nextSetBit(0); i >= 0;
+                i = mCheckedPositions.nextSetBit(i + 1)) {
+            fileInfoCheckedList.add(mFileInfoList.get(i));
         }
         return fileInfoCheckedList;
     }
@@ -169,12 +226,34 @@ public class FileInfoAdapter extends BaseAdapter {
      * @return the first item in the list of the checked items
      */
     public FileInfo getFirstCheckedFileInfoItem() {
-        for (FileInfo fileInfo : mFileInfoList) {
+        ensureIndex();
+        int first = mCheckedPositions.nextSetBit(0);
+        return first >= 0 ? mFileInfoList.get(first) : null;
+    }
+
+    /**
+     * This method builds the position index and the checked positions again after a data set
+     * change. The list is shared with FileInfoManager, which only changes it before a data
+     * set change, and check states only change through this adapter, so nothing else can
+     * make them stale.
+     */
+    private void ensureIndex() {
+        if (mIndexValid) {
+            return;
+        }
+        int size = mFileInfoList.size();
+        mPositions.clear();
+        mCheckedPositions.clear();
+        for (int i = 0; i < size; i++) {
+            FileInfo fileInfo = mFileInfoList.get(i);
+            if (!mPositions.containsKey(fileInfo)) {
+                mPositions.put(fileInfo, i);
+            }
             if (fileInfo.isChecked()) {
-                return fileInfo;
+                mCheckedPositions.set(i);
             }
         }
-        return null;
+        mIndexValid = true;
     }
 
     /**
@@ -213,11 +292,12 @@ public class FileInfoAdapter extends BaseAdapter {
      * This method change all checked items to be unchecked state
      */
     private void clearChecked() {
-        for (FileInfo fileInfo : mFileInfoList) {
-            if (fileInfo.isChecked()) {
-                fileInfo.setChecked(false);
-            }
+        ensureIndex();
+        for (int i = mCheckedPositions.nextSetBit(0); i >= 0;
+                i = mCheckedPositions.nextSetBit(i + 1)) {
+            mFileInfoList.get(i).setChecked(false);
         }
+        mCheckedPositions.clear();
     }
 
     /**
@@ -294,7 +374,8 @@ public class FileInfoAdapter extends BaseAdapter {
 
         switch (mMode) {
         case MODE_EDIT:
-            if (currentItem.isChecked()) {
+            ensureIndex();
+            if (mCheckedPositions.get(pos)) {
                 view.setBackgroundColor(ThemeUtils.getThemeColor(mContext));
             }
             setSizeText(viewHolder.mSize, currentItem);
@@ -336,17 +417,22 @@ public class FileInfoAdapter extends BaseAdapter {
 		}	
 	}
 	//public IStorageManagerEx sm = MediatekClassFactory.createInstance(IStorageManagerEx.class);
-    private void setSizeText(TextView textView, FileInfo fileInfo) {
-        if (fileInfo.isDirectory()) {
-            if (MountPointManager.getInstance().isMountPoint(fileInfo.getFileAbsolutePath())) {
-                StringBuilder sb = new StringBuilder();
+    /**
+     * This method builds the free/total space text of a mount point. It makes statfs calls
+     * and formats sizes, so it runs off the UI thread, see getMountPointSizeText().
+     * 
+     * @param fileInfo the mount point
+     * @return the size text of the mount point
+     */
+    private String buildMountPointSizeText(FileInfo fileInfo) {
+        StringBuilder sb = new StringBuilder();
 				long freeSpace;
 				String freeSpaceString;
 				 
 				long totalSpace;
 				String totalSpaces;
 				
-				float fsizeMult = Float.parseFloat(SystemProperties.get("ro.file.sizemult", "5.125"));
+				float fsizeMult = getSizeMult();
 							
 				String status = fileInfo.getFileAbsolutePath();
 				
@@ -398,34 +484,103 @@ public class FileInfoAdapter extends BaseAdapter {
 					}				
 				}
 
-                LogUtils.d(TAG, "setSizeText, file name = " + fileInfo.getFileName()
-                        + ",file path = " + fileInfo.getFileAbsolutePath());
-                LogUtils.d(TAG, "setSizeText, freeSpace = " + freeSpace + ",totalSpace = "
-                        + totalSpace);
-                
-                sb.append(mResources.getString(R.string.free_space)).append(" ");
-                sb.append(freeSpaceString).append(" \n");
-                sb.append(mResources.getString(R.string.total_space)).append(" ");
-                sb.append(totalSpaces).append(" ");
-                textView.setText(sb.toString());
+        LogUtils.d(TAG, "setSizeText, file name = " + fileInfo.getFileName()
+                + ",file path = " + fileInfo.getFileAbsolutePath());
+        LogUtils.d(TAG, "setSizeText, freeSpace = " + freeSpace + ",totalSpace = "
+                + totalSpace);
+        
+        sb.append(mResources.getString(R.string.free_space)).append(" ");
+        sb.append(freeSpaceString).append(" \n");
+        sb.append(mResources.getString(R.string.total_space)).append(" ");
+        sb.append(totalSpaces).append(" ");
+        return sb.toString();
+    }
+
+    /**
+     * This method gets the size text of a mount point from the cache. If it has not been
+     * built since the data set last changed, it is built in the background and the list is
+     * refreshed once it is ready; until then the previous text, if any, is shown.
+     * 
+     * @param fileInfo the mount point
+     * @return the size text of the mount point
+     */
+    private String getMountPointSizeText(final FileInfo fileInfo) {
+        final String path = fileInfo.getFileAbsolutePath();
+        if (!mFreshSizeTexts.contains(path) && mPendingSizeTexts.add(path)) {
+            final int generation = mSizeTextGeneration;
+            new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... params) {
+                    return buildMountPointSizeText(fileInfo);
+                }
+
+                @Override
+                protected void onPostExecute(String text) {
+                    mPendingSizeTexts.remove(path);
+                    if (generation == mSizeTextGeneration) {
+                        mFreshSizeTexts.add(path);
+                    }
+                    if (!text.equals(mSizeTexts.put(path, text))) {
+                        FileInfoAdapter.super.notifyDataSetChanged();
+                    }
+                }
+            }.executeOnExecutor(BIND_EXECUTOR);
+        }
+        final String text = mSizeTexts.get(path);
+        return text != null ? text : "";
+    }
+
+    /**
+     * Mount, unmount and file operations all end with a data set change, which may change
+     * the free space of the mount points, so their size texts are built again. The list may
+     * have been sorted or refilled as well, so the position index is built again too.
+     */
+    @Override
+    public void notifyDataSetChanged() {
+        mIndexValid = false;
+        mSizeTextGeneration++;
+        mFreshSizeTexts.clear();
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * This method gets the multiplier of the shown total size from ro.file.sizemult, or the
+     * default one if the property can't be parsed.
+     * 
+     * @return the multiplier of the shown total size
+     */
+    private static float getSizeMult() {
+        float sizeMult = sSizeMult;
+        if (sizeMult < 0) {
+            try {
+                sizeMult = Float.parseFloat(
+                        SystemProperties.get("ro.file.sizemult", DEFAULT_SIZE_MULT));
+            } catch (NumberFormatException e) {
+                LogUtils.w(TAG, "getSizeMult, bad ro.file.sizemult: " + e);
+                sizeMult = Float.parseFloat(DEFAULT_SIZE_MULT);
+            }
+            sSizeMult = sizeMult;
+        }
+        return sizeMult;
+    }
+
+    private void setSizeText(TextView textView, FileInfo fileInfo) {
+        if (fileInfo.isDirectory()) {
+            if (MountPointManager.getInstance().isMountPoint(fileInfo.getFileAbsolutePath())) {
+                textView.setText(getMountPointSizeText(fileInfo));
                 textView.setVisibility(View.VISIBLE);
             } else {
                 // it is a directory
                 textView.setVisibility(View.GONE);
             }
         } else {
-            StringBuilder sb = new StringBuilder();
-            sb.append(mResources.getString(R.string.size)).append(" ");
-            sb.append(fileInfo.getFileSizeStr());
-            textView.setText(sb.toString());
+            textView.setText(mSizeLabel + fileInfo.getFileSizeStr());
             textView.setVisibility(View.VISIBLE);
         }
     }
 
     private void setIcon(FileViewHolder viewHolder, FileInfo fileInfo,int viewDirection) {
-        Bitmap icon = IconManager.getInstance().getIcon(mResources, fileInfo, mService,viewDirection);
-
-        viewHolder.mIcon.setImageBitmap(icon);
+        bindIcon(viewHolder, fileInfo, viewDirection);
         viewHolder.mIcon.setAlpha(DEFAULT_ICON_ALPHA);
         if (FileInfoManager.PASTE_MODE_CUT == mFileInfoManager.getPasteType()) {
             if (mFileInfoManager.isPasteItem(fileInfo)) {
@@ -437,10 +592,125 @@ public class FileInfoAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * This method shows the icon of the item. The type icon comes from IconManager, which is
+     * only used on the UI thread. Images then get a thumbnail decoded on BIND_EXECUTOR and kept
+     * in mThumbnailCache; a decode still pending when the row is bound to another item is
+     * cancelled.
+     * 
+     * @param viewHolder the view holder of the row
+     * @param fileInfo the item shown in the row
+     * @param viewDirection the layout direction of the list
+     */
+    private void bindIcon(final FileViewHolder viewHolder, final FileInfo fileInfo,
+            final int viewDirection) {
+        final String key = isImage(fileInfo) ? fileInfo.getFileAbsolutePath() + ":"
+                + fileInfo.getFileLastModifiedTime() + ":" + fileInfo.getFileSize() : null;
+        if (viewHolder.mIconTask != null) {
+            if (key != null && key.equals(viewHolder.mIconKey)) {
+                return;
+            }
+            viewHolder.mIconTask.cancel(false);
+            viewHolder.mIconTask = null;
+        }
+        viewHolder.mIconKey = key;
+
+        final Bitmap cached = key != null ? mThumbnailCache.get(key) : null;
+        if (cached != null) {
+            viewHolder.mIcon.setImageBitmap(cached);
+            return;
+        }
+
+        final Bitmap icon = IconManager.getInstance().getIcon(mResources, fileInfo, mService,
+                viewDirection);
+        viewHolder.mIcon.setImageBitmap(icon);
+        if (key == null || icon == null) {
+            return;
+        }
+
+        final String path = fileInfo.getFileAbsolutePath();
+        final int width = icon.getWidth();
+        final int height = icon.getHeight();
+        viewHolder.mIconTask = new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                return decodeThumbnail(path, width, height);
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap thumbnail) {
+                if (thumbnail != null) {
+                    mThumbnailCache.put(key, thumbnail);
+                }
+                if (viewHolder.mIconTask == this) {
+                    viewHolder.mIconTask = null;
+                    if (thumbnail != null) {
+                        viewHolder.mIcon.setImageBitmap(thumbnail);
+                    }
+                }
+            }
+        }.executeOnExecutor(BIND_EXECUTOR);
+    }
+
+    /**
+     * This method checks whether a thumbnail should be shown for the item, by the MIME type of
+     * its extension. DRM files have their own types and keep their type icon.
+     * 
+     * @param fileInfo the item to check
+     * @return true if the item is an image, false otherwise
+     */
+    private static boolean isImage(FileInfo fileInfo) {
+        if (fileInfo.isDirectory()) {
+            return false;
+        }
+        final String name = fileInfo.getFileName();
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        final String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                name.substring(dot + 1).toLowerCase(Locale.US));
+        return mimeType != null && mimeType.startsWith("image/");
+    }
+
+    /**
+     * This method decodes the image at the given path, scaled and cropped to the given size.
+     * 
+     * @param path the path of the image
+     * @param width the width of the thumbnail
+     * @param height the height of the thumbnail
+     * @return the thumbnail, or null if the image can't be decoded
+     */
+    private static Bitmap decodeThumbnail(String path, int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) {
+            return null;
+        }
+        return ThumbnailUtils.extractThumbnail(bitmap, width, height,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
     static class FileViewHolder {
         protected TextView mName;
         protected TextView mSize;
         protected ImageView mIcon;
+        /** The key of the thumbnail shown or being loaded for this row, if it has one. */
+        String mIconKey;
+        /** The pending thumbnail load of this row, if any. */
+        AsyncTask<Void, Void, Bitmap> mIconTask;
 
         /**
          * The constructor to construct an edit view tag
@@ -17,9 +17,11 @@
 package com.android.settings.deviceinfo;
 
 import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageStatsObserver;
@@ -33,11 +35,15 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
 import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseLongArray;
 
 import com.android.internal.app.IMediaContainerService;
@@ -56,6 +62,17 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -83,6 +100,62 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /**
+     * Bounded pool which sizes the top level directories of misc files in
+     * parallel. Queued directories are taken from the shared queue by whichever
+     * thread is free, and the threads die when the pool has been idle a while.
+     */
+    private static final int MISC_THREAD_COUNT = 4;
+    private static final ThreadPoolExecutor sMiscExecutor = new ThreadPoolExecutor(
+            MISC_THREAD_COUNT, MISC_THREAD_COUNT, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "MiscMeasurement #" + mCount.getAndIncrement());
+                }
+            });
+
+    static {
+        sMiscExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fake sizes in MB from the build, read once since they can't change.
+     * An unset, empty, malformed or "0" property parses to 0, and the real
+     * statvfs total is shown instead.
+     */
+    private static final String SDCARD_SIZE_PROPERTY = SystemProperties.get("ro.sdcard.size");
+    private static final String PHONE_SIZE_PROPERTY = SystemProperties.get("ro.phone.size");
+    private static final long SDCARD_SIZE = parseSize(SDCARD_SIZE_PROPERTY);
+    private static final long PHONE_SIZE = parseSize(PHONE_SIZE_PROPERTY);
+
+    /**
+     * How long a statvfs result from the container service is reused. Resume,
+     * storage state changes and media scans tend to ask for it in bursts.
+     */
+    private static final long FILE_SYSTEM_STATS_TTL = 5000;
+
+    private static class CachedStats {
+        final long[] mStats;
+        final long mTime;
+
+        CachedStats(long[] stats, long time) {
+            mStats = stats;
+            mTime = time;
+        }
+    }
+
+    @GuardedBy("sFileSystemStats")
+    private static final HashMap<String, CachedStats> sFileSystemStats = Maps.newHashMap();
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -164,22 +237,56 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    /** Sizes of directories measured before, see {@link #getDirectorySize}. */
+    private final DirectorySizeIndex mSizeIndex;
+
     private long mTotalSize;
     private long mAvailSize;
 
     List<FileInfo> mFileInfoForMisc;
 
+    /** Set by {@link #cleanUp()} to stop a running {@link #measureMisc}. */
+    private volatile boolean mMiscCancelled;
+
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mSizeIndex = new DirectorySizeIndex();
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
         handlerThread.start();
         mHandler = new MeasurementHandler(context, handlerThread.getLooper());
+
+        // Instances are shared and never released, like the application
+        // context they are created with, so the receiver stays registered.
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme("file");
+        context.registerReceiver(mMountReceiver, filter);
     }
 
+    /**
+     * Drops the cached statvfs result of this volume when it is mounted or
+     * unmounted. Internal storage may be backed by any volume on shared
+     * sdcard loads, so it listens to all of them.
+     */
+    private final BroadcastReceiver mMountReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String path = intent.getData() != null ? intent.getData().getPath() : null;
+            if (mVolume == null || mVolume.getPath().equals(path)) {
+                invalidateFileSystemStats();
+            }
+        }
+    };
+
     public void setReceiver(MeasurementReceiver receiver) {
         if (mReceiver == null || mReceiver.get() == null) {
             mReceiver = new WeakReference<MeasurementReceiver>(receiver);
@@ -194,6 +301,7 @@ public class StorageMeasurement {
 
     public void cleanUp() {
         mReceiver = null;
+        mMiscCancelled = true;
         mHandler.removeMessages(MeasurementHandler.MSG_MEASURE);
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
@@ -202,6 +310,33 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Drops the cached statvfs result of this volume, so that the next
+     * measurement asks the container service again. Only needed when the
+     * volume was mounted or unmounted; other changes are picked up once the
+     * result is older than {@link #FILE_SYSTEM_STATS_TTL}.
+     */
+    private void invalidateFileSystemStats() {
+        synchronized (sFileSystemStats) {
+            sFileSystemStats.remove(getFileSystemStatsPath());
+        }
+    }
+
+    /**
+     * M: MTK add reserve data feature on sd share load, so on the sd share load
+     * when calculating the internal storage  total size and avail size, use the
+     * external storage path(such as /sdcard/emulated/0) instead of it.
+     */
+    private String getFileSystemStatsPath() {
+        if (mVolume != null) {
+            return mVolume.getPath();
+        } else if (FeatureOption.MTK_SHARED_SDCARD) {
+            return Environment.getLegacyExternalStorageDirectory().getPath();
+        } else {
+            return Environment.getDataDirectory().getPath();
+        }
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -222,35 +357,59 @@ public class StorageMeasurement {
     }
 
     private static class StatsObserver extends IPackageStatsObserver.Stub {
+        /** Cells of {@link #mUserStats}. */
+        private static final int STAT_APPS = 0;
+        private static final int STAT_DATA = 1;
+        private static final int STAT_CACHE = 2;
+        private static final int STAT_COUNT = 3;
+
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
         private final Message mFinished;
 
-        private int mRemaining;
+        /**
+         * Sizes added up per user, built before the first request is made and
+         * only read once the last callback is in. Callbacks for different
+         * packages arrive on several binder threads and only touch these cells,
+         * so they never wait on each other.
+         */
+        private final SparseArray<AtomicLongArray> mUserStats;
+
+        private final AtomicInteger mRemaining;
 
         public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+                List<UserInfo> users, Message finished, int remaining) {
             mIsInternal = isInternal;
             mDetails = details;
             mCurrentUser = currentUser;
             mFinished = finished;
-            mRemaining = remaining;
+            mRemaining = new AtomicInteger(remaining);
+
+            mUserStats = new SparseArray<AtomicLongArray>(users.size());
+            for (UserInfo user : users) {
+                mUserStats.put(user.id, new AtomicLongArray(STAT_COUNT));
+            }
         }
 
         @Override
         public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
-            synchronized (mDetails) {
-                if (succeeded) {
-                    addStatsLocked(stats);
-                }
-                if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
-                }
+            if (succeeded) {
+                addStats(stats);
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                publishDetails();
+                mFinished.sendToTarget();
             }
         }
 
-        private void addStatsLocked(PackageStats stats) {
+        private void addStats(PackageStats stats) {
+            final AtomicLongArray cells = mUserStats.get(stats.userHandle);
+            if (cells == null) {
+                Log.w(TAG, "Stats for unknown user " + stats.userHandle);
+                return;
+            }
+
             if (mIsInternal) {
                 long codeSize = stats.codeSize;
                 long dataSize = stats.dataSize;
@@ -265,22 +424,37 @@ public class StorageMeasurement {
 
                 // Count code and data for current user
                 if (stats.userHandle == mCurrentUser) {
-                    mDetails.appsSize += codeSize;
-                    mDetails.appsSize += dataSize;
+                    cells.addAndGet(STAT_APPS, codeSize + dataSize);
                 }
 
                 // User summary only includes data (code is only counted once
                 // for the current user)
-                addValue(mDetails.usersSize, stats.userHandle, dataSize);
+                cells.addAndGet(STAT_DATA, dataSize);
 
                 // Include cache for all users
-                mDetails.cacheSize += cacheSize;
+                cells.addAndGet(STAT_CACHE, cacheSize);
 
             } else {
                 // Physical storage; only count external sizes
-                mDetails.appsSize += stats.externalCodeSize + stats.externalDataSize
-                        + stats.externalMediaSize + stats.externalObbSize;
-                mDetails.cacheSize += stats.externalCacheSize;
+                cells.addAndGet(STAT_APPS, stats.externalCodeSize + stats.externalDataSize
+                        + stats.externalMediaSize + stats.externalObbSize);
+                cells.addAndGet(STAT_CACHE, stats.externalCacheSize);
+            }
+        }
+
+        /**
+         * Folds the per user cells into {@link #mDetails}. Runs once, on the
+         * thread of the last callback, which has seen every other update
+         * through {@link #mRemaining}.
+         */
+        private void publishDetails() {
+            for (int i = 0; i < mUserStats.size(); i++) {
+                final AtomicLongArray cells = mUserStats.valueAt(i);
+                mDetails.appsSize += cells.get(STAT_APPS);
+                mDetails.cacheSize += cells.get(STAT_CACHE);
+                if (mIsInternal) {
+                    addValue(mDetails.usersSize, mUserStats.keyAt(i), cells.get(STAT_DATA));
+                }
             }
         }
     }
@@ -387,12 +561,7 @@ public class StorageMeasurement {
         private void measureApproximateStorage(IMediaContainerService imcs) {
             /*final String path = mVolume != null ? mVolume.getPath()
                     : Environment.getDataDirectory().getPath();*/
-            /**
-             * M: MTK add reserve data feature on sd share load, so on the sd share load
-             * when calculating the internal storage  total size and avail size, use the
-             * external storage path(such as /sdcard/emulated/0) instead of it.
-             */
-            final String path;
+            final String path = getFileSystemStatsPath();
             
             Intent intent = new Intent();
             mStorageVolume = intent.getParcelableExtra(StorageVolume.EXTRA_STORAGE_VOLUME);
@@ -405,36 +574,27 @@ public class StorageMeasurement {
             
             Log.d(TAG, "sdExist is " + sdExist);
 
-            if(mVolume != null) {
-                path = mVolume.getPath();
-            } else {
-                if(FeatureOption.MTK_SHARED_SDCARD) {
-                    path = Environment.getLegacyExternalStorageDirectory().getPath();
-                } else {
-                    path = Environment.getDataDirectory().getPath();
-                }
-            }
             Log.d(TAG, "measureApproximateStorage, path is " + path);
             
-            final long sdcard_size = Long.parseLong(SystemProperties.get("ro.sdcard.size"));
-            final long phone_size = Long.parseLong(SystemProperties.get("ro.phone.size"));
+            final long sdcard_size = SDCARD_SIZE;
+            final long phone_size = PHONE_SIZE;
             
             try {
-                final long[] stats = imcs.getFileSystemStats(path);
-                if(mVolume!=null && sdExist == true && mVolume.getPath().toString().equals ("/storage/sdcard1")&&!((SystemProperties.get("ro.sdcard.size")).equals("0")))
+                final long[] stats = getFileSystemStats(imcs, path);
+                if(mVolume!=null && sdExist == true && mVolume.getPath().toString().equals ("/storage/sdcard1")&& SDCARD_SIZE > 0)
 					      {
-					      	 Log.w(TAG, "ro.sdcard.size="+SystemProperties.get("ro.sdcard.size"));
+					      	 Log.w(TAG, "ro.sdcard.size="+SDCARD_SIZE_PROPERTY);
 					      	 mTotalSize = sdcard_size*1048576;
                    mAvailSize = sdcard_size*1048576-stats[0]+stats[1];
 					      }
-					      else if(mVolume!=null && sdExist == false && mVolume.getPath().toString().equals ("/storage/sdcard0")&&!((SystemProperties.get("ro.sdcard.size")).equals("0")))
+					      else if(mVolume!=null && sdExist == false && mVolume.getPath().toString().equals ("/storage/sdcard0")&& SDCARD_SIZE > 0)
 					      {
 					      	 mTotalSize = sdcard_size*1048576;
                    mAvailSize = sdcard_size*1048576-stats[0]+stats[1];
 					      }
- 		            else if(path.toString().equals (Environment.getDataDirectory().getPath().toString())&&!((SystemProperties.get("ro.phone.size")).equals("0")))
+ 		            else if(path.toString().equals (Environment.getDataDirectory().getPath().toString())&& PHONE_SIZE > 0)
  		            {
- 		            	 Log.w(TAG, "ro.phone.size="+SystemProperties.get("ro.phone.size"));
+ 		            	 Log.w(TAG, "ro.phone.size="+PHONE_SIZE_PROPERTY);
 		               mTotalSize = phone_size*1048576;
              	     mAvailSize = phone_size*1048576-stats[0]+stats[1];				  
 		            }
@@ -442,15 +602,15 @@ public class StorageMeasurement {
 		           //change by lhy
 				    else if(FeatureOption.MTK_SHARED_SDCARD && sdExist == true && path.toString().equals ("/storage/sdcard1"))
 		           {
-		           		Log.w("lhy", "ro.phone.size="+SystemProperties.get("ro.phone.size"));
+		           		Log.w("lhy", "ro.phone.size="+PHONE_SIZE_PROPERTY);
 		    			mTotalSize = (long)(stats[0]*5.125);
 					    Log.w("lhy", "mTotalSize="+mTotalSize);
              	     	mAvailSize = mTotalSize-(stats[0]-stats[1]);	
 						Log.w("lhy", "mAvailSize="+mAvailSize);
 		            }
-		            else if(FeatureOption.MTK_SHARED_SDCARD && sdExist == false && path.toString().equals ("/storage/sdcard0")&&!((SystemProperties.get("ro.phone.size")).equals("0")))
+		            else if(FeatureOption.MTK_SHARED_SDCARD && sdExist == false && path.toString().equals ("/storage/sdcard0")&& PHONE_SIZE > 0)
 		            {
-		            	 Log.w("lhy", "ro.phone.size="+SystemProperties.get("ro.phone.size"));
+		            	 Log.w("lhy", "ro.phone.size="+PHONE_SIZE_PROPERTY);
 		               mTotalSize = phone_size*1048576;
              	     mAvailSize = phone_size*1048576-stats[0]+stats[1];	
 		            }	            
@@ -525,7 +685,7 @@ public class StorageMeasurement {
 
                 final int count = users.size() * apps.size();
                 final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+                        mIsInternal, details, currentUser, users, finished, count);
 
                 for (UserInfo user : users) {
                     for (ApplicationInfo app : apps) {
@@ -539,12 +699,27 @@ public class StorageMeasurement {
         }
     }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+    /**
+     * Size of the given directory, from {@link #mSizeIndex} if nothing below it
+     * changed since it was last measured, or else from the container service.
+     */
+    private long getDirectorySize(IMediaContainerService imcs, File path) {
+        final long indexed = mSizeIndex.getSize(path);
+        if (indexed >= 0) {
+            if (LOGV) Log.v(TAG, "getDirectorySize(" + path + ") indexed " + indexed);
+            return indexed;
+        }
+
+        final DirectorySizeIndex.Watch watch = mSizeIndex.startWatching(path);
         try {
             final long size = imcs.calculateDirectorySize(path.toString());
             Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            mSizeIndex.putSize(watch, size);
             return size;
         } catch (Exception e) {
+            if (watch != null) {
+                watch.stop();
+            }
             Log.w(TAG, "Could not read memory from default container service for " + path, e);
             return 0;
         }
@@ -562,19 +737,25 @@ public class StorageMeasurement {
     }
     /** @} */ 
 	
-    private long measureMisc(IMediaContainerService imcs, File dir) {
+    private long measureMisc(final IMediaContainerService imcs, File dir) {
         mFileInfoForMisc = new ArrayList<FileInfo>();
+        mMiscCancelled = false;
 
         final File[] files = dir.listFiles();
         if (files == null) return 0;
 
-        // Get sizes of all top level nodes except the ones already computed
+        // Get sizes of all top level nodes except the ones already computed.
+        // Files are sized here, directories are handed to sMiscExecutor and
+        // collected below in the order they complete.
         long counter = 0;
         long miscSize = 0;
+        final CompletionService<FileInfo> completion =
+                new ExecutorCompletionService<FileInfo>(sMiscExecutor);
+        final ArrayList<Future<FileInfo>> pending = new ArrayList<Future<FileInfo>>();
 
         //M: CR ALPS01284632
         int scannedCount = 0;
-        for (File file : files) {
+        for (final File file : files) {
             final String path = file.getAbsolutePath();
             final String name = file.getName();
             if (sMeasureMediaTypes.contains(name)) {
@@ -585,24 +766,51 @@ public class StorageMeasurement {
                 final long fileSize = file.length();
                 mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
                 miscSize += fileSize;
+                scannedCount = notifyMiscScanned(scannedCount);
             } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                final long id = counter++;
+                pending.add(completion.submit(new Callable<FileInfo>() {
+                    @Override
+                    public FileInfo call() {
+                        if (mMiscCancelled) {
+                            return null;
+                        }
+                        return new FileInfo(path, getDirectorySize(imcs, file), id);
+                    }
+                }));
             } else {
                 // Non directory, non file: not listed
             }
+        }
 
-            /** M: CR ALPS01284632, Update adapter every time we scanned
-             *     10 files or folder. @{ */ 
-            scannedCount++;
-            if (scannedCount == 10) {
-                scannedCount = 0;
-                if (mICallBack != null) {
-                    mICallBack.callBack(mFileInfoForMisc);
-                }
-           }
-           /** @} */
+        for (int i = 0; i < pending.size() && !mMiscCancelled; i++) {
+            final FileInfo info;
+            try {
+                info = completion.take().get();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while measuring misc files", e);
+                mMiscCancelled = true;
+                break;
+            } catch (ExecutionException e) {
+                // Only this directory is left out; keep collecting the others.
+                Log.w(TAG, "Problem measuring misc files", e);
+                continue;
+            }
+            if (info == null) {
+                continue;
+            }
+            mFileInfoForMisc.add(info);
+            miscSize += info.mSize;
+            scannedCount = notifyMiscScanned(scannedCount);
+        }
+
+        if (mMiscCancelled) {
+            // Directories still queued are dropped; the ones being sized finish
+            // on their own since the binder call can't be interrupted.
+            for (Future<FileInfo> future : pending) {
+                future.cancel(false);
+            }
+            Log.d(TAG, "measureMisc cancelled");
         }
 
         /** M: CR ALPS01284632, Update adapter when scanned result is less
@@ -618,6 +826,20 @@ public class StorageMeasurement {
         return miscSize;
     }
 
+    /** M: CR ALPS01284632, Update adapter every time we scanned
+     *     10 files or folder. @{ */
+    private int notifyMiscScanned(int scannedCount) {
+        scannedCount++;
+        if (scannedCount == 10) {
+            scannedCount = 0;
+            if (mICallBack != null) {
+                mICallBack.callBack(mFileInfoForMisc);
+            }
+        }
+        return scannedCount;
+    }
+    /** @} */
+
     static class FileInfo implements Comparable<FileInfo> {
         final String mFileName;
         final long mSize;
@@ -641,6 +863,36 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * Returns {total, available} bytes for the given path, from the container
+     * service or from a result it gave less than {@link #FILE_SYSTEM_STATS_TTL}
+     * ago. The returned array is shared and must not be changed.
+     */
+    private static long[] getFileSystemStats(IMediaContainerService imcs, String path)
+            throws RemoteException {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sFileSystemStats) {
+            final CachedStats cached = sFileSystemStats.get(path);
+            if (cached != null && now - cached.mTime < FILE_SYSTEM_STATS_TTL) {
+                return cached.mStats;
+            }
+        }
+
+        final long[] stats = imcs.getFileSystemStats(path);
+        synchronized (sFileSystemStats) {
+            sFileSystemStats.put(path, new CachedStats(stats, now));
+        }
+        return stats;
+    }
+
+    private static long parseSize(String size) {
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private static void addValue(SparseLongArray array, int key, long value) {
         array.put(key, array.get(key) + value);
     }
@@ -20,15 +20,42 @@ import libcore.io.ErrnoException;
 import libcore.io.Libcore;
 import libcore.io.StructStatVfs;
 
+import java.util.HashMap;
+import java.util.Iterator;
+
 /**
  * Retrieve overall information about the space on a filesystem. This is a
  * wrapper for Unix statvfs().
  */
 public class StatFs {
+    /**
+     * Snapshots younger than this are handed out again instead of doing
+     * another statvfs(), so that the storage screens opening at the same time
+     * share one call per mount point.
+     */
+    private static final long SNAPSHOT_MAX_AGE_MS = 1000;
+    private static final int MAX_SNAPSHOTS = 32;
+
+    private static final Object sSnapshotLock = new Object();
+    private static final HashMap<String, Snapshot> sSnapshots = new HashMap<String, Snapshot>();
+
+    /**
+     * Blocks reported by the deprecated {@link #getBlockCount()} for every
+     * real block; only /data is reported as it is.
+     */
+    private static final int FAKE_BLOCK_COUNT_SCALE = 3;
+    private static final String DATA_PATH = "/data";
+
+    /** Index of the total bytes in the array filled by {@link #getUsage(long[])}. {@hide} */
+    public static final int USAGE_TOTAL = 0;
+    /** Index of the free bytes in the array filled by {@link #getUsage(long[])}. {@hide} */
+    public static final int USAGE_FREE = 1;
+    /** Index of the available bytes in the array filled by {@link #getUsage(long[])}. {@hide} */
+    public static final int USAGE_AVAILABLE = 2;
+
     private StructStatVfs mStat;
+    private int mBlockCountScale;
 
-	private String status;
-  
     /**
      * Construct a new StatFs for looking at the stats of the filesystem at
      * {@code path}. Upon construction, the stat of the file system will be
@@ -38,8 +65,117 @@ public class StatFs {
      * @param path path in the desired file system to stat.
      */
     public StatFs(String path) {
-        mStat = doStat(path);
-		status = path;
+        restat(path);
+    }
+
+    /**
+     * Immutable stats of one file system, as returned by
+     * {@link StatFs#snapshot(String...)}.
+     *
+     * {@hide}
+     */
+    public static final class Snapshot {
+        /** The path the file system was looked up with. */
+        public final String path;
+        /** The Unix {@code statvfs.f_bsize} field. */
+        public final long blockSize;
+        /** The Unix {@code statvfs.f_blocks} field. */
+        public final long blockCount;
+        /** The Unix {@code statvfs.f_bfree} field. */
+        public final long freeBlocks;
+        /** The Unix {@code statvfs.f_bavail} field. */
+        public final long availableBlocks;
+
+        private final long mTime;
+
+        private Snapshot(String path, StructStatVfs stat, long time) {
+            this.path = path;
+            blockSize = stat.f_bsize;
+            blockCount = stat.f_blocks;
+            freeBlocks = stat.f_bfree;
+            availableBlocks = stat.f_bavail;
+            mTime = time;
+        }
+
+        /**
+         * The total number of bytes supported by the file system.
+         */
+        public long getTotalBytes() {
+            return blockCount * blockSize;
+        }
+
+        /**
+         * The number of bytes that are free on the file system, including
+         * reserved blocks (that are not available to normal applications).
+         */
+        public long getFreeBytes() {
+            return freeBlocks * blockSize;
+        }
+
+        /**
+         * The number of bytes that are free on the file system and available to
+         * applications.
+         */
+        public long getAvailableBytes() {
+            return availableBlocks * blockSize;
+        }
+    }
+
+    /**
+     * Returns the stats of the file systems at the given paths, in the same
+     * order. Paths looked up less than a second ago, by this or by an earlier
+     * call, are not looked up again, so callers that only need a consistent
+     * view of several mount points should prefer this over creating one
+     * {@link StatFs} per path.
+     *
+     * @param paths paths in the desired file systems to stat.
+     * @throws IllegalArgumentException if one of the paths cannot be looked up.
+     *
+     * {@hide}
+     */
+    public static Snapshot[] snapshot(String... paths) {
+        final Snapshot[] result = new Snapshot[paths.length];
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sSnapshotLock) {
+            for (int i = 0; i < paths.length; i++) {
+                final Snapshot snapshot = sSnapshots.get(paths[i]);
+                if (snapshot != null && now - snapshot.mTime < SNAPSHOT_MAX_AGE_MS) {
+                    result[i] = snapshot;
+                }
+            }
+        }
+
+        boolean looked = false;
+        for (int i = 0; i < paths.length; i++) {
+            if (result[i] != null) {
+                continue;
+            }
+            final Snapshot snapshot = new Snapshot(paths[i], doStat(paths[i]), now);
+            // Fill in later duplicates of the same path from this call.
+            for (int j = i; j < paths.length; j++) {
+                if (result[j] == null && paths[j].equals(paths[i])) {
+                    result[j] = snapshot;
+                }
+            }
+            looked = true;
+        }
+
+        if (looked) {
+            synchronized (sSnapshotLock) {
+                for (Snapshot snapshot : result) {
+                    sSnapshots.put(snapshot.path, snapshot);
+                }
+                if (sSnapshots.size() > MAX_SNAPSHOTS) {
+                    final Iterator<Snapshot> it = sSnapshots.values().iterator();
+                    while (it.hasNext()) {
+                        if (now - it.next().mTime >= SNAPSHOT_MAX_AGE_MS) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+        return result;
     }
 
     private static StructStatVfs doStat(String path) {
@@ -57,6 +193,15 @@ public class StatFs {
      */
     public void restat(String path) {
         mStat = doStat(path);
+        mBlockCountScale = DATA_PATH.equals(path) ? 1 : FAKE_BLOCK_COUNT_SCALE;
+    }
+
+    /**
+     * Clamps a block count to the range of the deprecated int getters, which
+     * would otherwise wrap around on large volumes.
+     */
+    private static int toIntBlocks(long blocks) {
+        return blocks > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) blocks;
     }
 
     /**
@@ -64,7 +209,7 @@ public class StatFs {
      */
     @Deprecated
     public int getBlockSize() {
-        return (int) mStat.f_bsize;
+        return toIntBlocks(mStat.f_bsize);
     }
 
     /**
@@ -80,13 +225,9 @@ public class StatFs {
      */
     @Deprecated
     public int getBlockCount() {
-        //return (int) (mStat.f_blocks*3.5);
-		if (status.equals("/data")) 		
-			return (int) mStat.f_blocks;	
-		else {   
-			return (int) (mStat.f_blocks * 3);
-		}		
+        return toIntBlocks(mStat.f_blocks * mBlockCountScale);
     }
+
     /**
      * The total number of blocks on the file system. This corresponds to the
      * Unix {@code statvfs.f_blocks} field.
@@ -100,7 +241,7 @@ public class StatFs {
      */
     @Deprecated
     public int getFreeBlocks() {
-        return (int) mStat.f_bfree;
+        return toIntBlocks(mStat.f_bfree);
     }
 
     /**
@@ -127,7 +268,7 @@ public class StatFs {
      */
     @Deprecated
     public int getAvailableBlocks() {
-        return (int) mStat.f_bavail;
+        return toIntBlocks(mStat.f_bavail);
     }
 
     /**
@@ -152,4 +293,21 @@ public class StatFs {
     public long getTotalBytes() {
         return mStat.f_blocks * mStat.f_bsize;
     }
+
+    /**
+     * Fills {@code out} with the total, free and available bytes of the file
+     * system, at {@link #USAGE_TOTAL}, {@link #USAGE_FREE} and
+     * {@link #USAGE_AVAILABLE}, from the same stat. Meant for callers that
+     * poll, so nothing is allocated.
+     *
+     * @param out array of at least three elements to fill.
+     *
+     * {@hide}
+     */
+    public void getUsage(long[] out) {
+        final StructStatVfs stat = mStat;
+        out[USAGE_TOTAL] = stat.f_blocks * stat.f_bsize;
+        out[USAGE_FREE] = stat.f_bfree * stat.f_bsize;
+        out[USAGE_AVAILABLE] = stat.f_bavail * stat.f_bsize;
+    }
 }
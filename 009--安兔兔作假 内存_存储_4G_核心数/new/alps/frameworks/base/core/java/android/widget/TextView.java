@@ -3712,6 +3712,42 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
         }
     }
 
+    /**
+     * Every text replaced by {@link #rewriteText(CharSequence)} has an '8' or a '/'
+     * in it; checking for those first keeps the string work off all other
+     * texts, without converting spanned text to a String.
+     */
+    private static boolean mayNeedRewrite(CharSequence text) {
+        final int len = text.length();
+        for (int i = 0; i < len; i++) {
+            final char c = text.charAt(i);
+            if (c == '8' || c == '/') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static CharSequence rewriteText(CharSequence text) {
+        String str = text.toString();
+        if (str.contains("MT8382")) {
+            text = str = "MT6592";
+        }
+
+        if (str.contains("1280") && str.contains("800")) {
+            text = str = "1920*1080";
+        }
+
+        if (str.contains("30.4") && str.contains(" / ") && str.contains("GB")) {
+            text = str = getString(str);
+        }
+
+        if (str.contains("175.1") && str.contains(" / ") && str.contains("GB")) {
+            text = str = getStringSub(str);
+        }
+        return text;
+    }
+
 	public static String getString(String str) {
 		String arr[] = str.split("/");
 		
@@ -3738,23 +3774,10 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
             text = "";
         }
 
-		if (text.toString().contains("MT8382")) {
-			text = "MT6592";
-		}
-		
-		if (text.toString().contains("1280") && text.toString().contains("800")) {
-			text = "1920*1080";
-		}
-		
-		if (text.toString().contains("30.4") && text.toString().contains(" / ") && text.toString().contains("GB")) {
-			text = getString(text.toString());
-		}
-		
-		if (text.toString().contains("175.1") && text.toString().contains(" / ") && text.toString().contains("GB")) {
-			text = getStringSub(text.toString());
-		}
+        if (mayNeedRewrite(text)) {
+            text = rewriteText(text);
+        }
 
-		
         // If suggestions are not enabled, remove the suggestion spans from the text
         if (!isSuggestionsEnabled()) {
             text = removeSuggestionSpans(text);
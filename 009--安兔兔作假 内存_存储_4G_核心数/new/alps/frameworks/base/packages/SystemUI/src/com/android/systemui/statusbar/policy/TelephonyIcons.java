@@ -35,12 +35,10 @@ public class TelephonyIcons {
 
     /// M: For EVDO Common . @{
     public static int getSignalStrengthIconGemini(int simColorId, int type, int level, boolean showSimIndicator) {
-        if (type == 0) {
-            return TELEPHONY_SIGNAL_STRENGTH_UP[simColorId][level];
-        } else if (type == 1) {
-            return TELEPHONY_SIGNAL_STRENGTH_DOWN[simColorId][level];
+        if (type < 0 || type >= TELEPHONY_SIGNAL_STRENGTH_BY_TYPE.length) {
+            return -1;
         }
-        return -1;
+        return TELEPHONY_SIGNAL_STRENGTH_BY_TYPE[type][simColorId][level];
     }
 
     private static final int[][] TELEPHONY_SIGNAL_STRENGTH_UP = {
@@ -87,6 +85,11 @@ public class TelephonyIcons {
           R.drawable.stat_sys_gemini_signal_down_3_purple,
           R.drawable.stat_sys_gemini_signal_down_4_purple }
     };
+    /** Indexed by the type passed to getSignalStrengthIconGemini: 0 for up, 1 for down. */
+    private static final int[][][] TELEPHONY_SIGNAL_STRENGTH_BY_TYPE = {
+        TELEPHONY_SIGNAL_STRENGTH_UP,
+        TELEPHONY_SIGNAL_STRENGTH_DOWN
+    };
     /// @}
 
     //GSM/UMTS
@@ -371,6 +374,12 @@ public class TelephonyIcons {
 
     /** Data connection type icons for roaming. }@ */
 
+    /** Data connection type icons, indexed by roaming (1) or not (0), then by type id. */
+    private static final int[][][] DATA_BY_ROAMING = {
+        DATA,
+        DATA_ROAM
+    };
+
     /** Roaming icons. @{ */
 
     static final int[] ROAMING = {
@@ -440,13 +449,7 @@ public class TelephonyIcons {
     /** Sim Background for SimIndicator. @} */
 
     public static int[] getDataTypeIconListGemini(boolean roaming, DataType dataType) {
-        int[] iconList = null;
-        if (roaming) {
-            iconList = DATA_ROAM[dataType.getTypeId()];
-        } else {
-            iconList = DATA[dataType.getTypeId()];
-        }
-        return iconList;
+        return DATA_BY_ROAMING[roaming ? 1 : 0][dataType.getTypeId()];
     }
 
     /** Network type icons. @{ */
@@ -485,16 +488,19 @@ public class TelephonyIcons {
         R.drawable.stat_sys_gemini_signal_4g_blue
     };
 
+    /** Network type icons indexed by NetworkType ordinal, null for types without an icon. */
+    private static final int[][] NETWORK_TYPE_BY_ORDINAL = new int[NetworkType.values().length][];
+
+    static {
+        NETWORK_TYPE_BY_ORDINAL[NetworkType.Type_G.ordinal()] = NETWORK_TYPE_G;
+        NETWORK_TYPE_BY_ORDINAL[NetworkType.Type_3G.ordinal()] = NETWORK_TYPE_3G;
+        NETWORK_TYPE_BY_ORDINAL[NetworkType.Type_4G.ordinal()] = NETWORK_TYPE_4G;
+    }
+
     static public int getNetworkTypeIconGemini(NetworkType networkType, int simColorId) {
-        if (networkType == NetworkType.Type_G) {
-            return NETWORK_TYPE_G[simColorId];
-        } else if (networkType == NetworkType.Type_3G) {
-            return NETWORK_TYPE_3G[simColorId];
-        } else if (networkType == NetworkType.Type_4G) {
-            return NETWORK_TYPE_4G[simColorId];
-        } else {
-            return -1;
-        }
+        final int[] iconList = networkType != null
+                ? NETWORK_TYPE_BY_ORDINAL[networkType.ordinal()] : null;
+        return iconList != null ? iconList[simColorId] : -1;
     }
     /** Network type icons. @} */
 
@@ -16,19 +16,33 @@
 
 package com.android.launcher3;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
+import android.os.Build;
 import android.os.SystemClock;
+import android.util.AtomicFile;
 import android.util.AttributeSet;
 import android.util.Xml;
 
@@ -52,9 +66,25 @@ class AllAppsList {
     
     /// M: add for top packages.
     private static final String TAG_TOPPACKAGES = "toppackages";
+    /// M: parsed top packages, saved in the cache dir so that top_package.xml is
+    /// only parsed again when the apk changes.
+    private static final String TOP_PACKAGE_CACHE = "toppackage.cache";
+    private static final int TOP_PACKAGE_CACHE_VERSION = 2;
     private static final String WIFI_SETTINGPKGNAME = "com.android.settings";
     private static final String WIFI_SETTINGCLASSNAME = "com.android.settings.Settings$WifiSettingsActivity";
 
+    /// M: hide the apps listed in ro.sys.hide when persist.sys.hide enables it. @{
+    private static final String PROPERTY_HIDE_MODE = "persist.sys.hide";
+    private static final String PROPERTY_HIDE_LIST = "ro.sys.hide";
+    private static final String HIDE_MODE = "customer";
+    /// ro.sys.hide is read-only, so it is only split once per process.
+    private static String[] sHideList = null;
+    /// The persist.sys.hide value the filter was built for.
+    private String mHideMode = null;
+    /// The package name parts to hide, or null if nothing is hidden.
+    private String[] mHideList = null;
+    /// M: @}
+
     private static final boolean DEBUG_LOADERS_REORDER = false;
     public static final int DEFAULT_APPLICATIONS_NUMBER = 42;
 
@@ -69,12 +99,30 @@ class AllAppsList {
     /** The list of apps that have been modified since the last notify() call. */
     public ArrayList<AppInfo> modified = new ArrayList<AppInfo>();
 
+    /// M: index of the apps in data by component and by package. @{
+    private final HashMap<ComponentName, AppInfo> mAppsByComponent =
+            new HashMap<ComponentName, AppInfo>(DEFAULT_APPLICATIONS_NUMBER);
+    private final HashMap<String, ArrayList<AppInfo>> mAppsByPackage =
+            new HashMap<String, ArrayList<AppInfo>>();
+    /** M: number of entries of data added to the indexes, duplicates included. */
+    private int mIndexedCount = 0;
+    /// M: @}
+
     private IconCache mIconCache;
 
     private AppFilter mAppFilter;
 
     /// M: add for top packages.
     static ArrayList<TopPackage> sTopPackages = null;
+    /// M: the top packages by component, built with sTopPackages.
+    static HashMap<ComponentName, TopPackage> sTopPackageIndex = null;
+
+    private static final Comparator<TopPackage> TOP_PACKAGE_ORDER = new Comparator<TopPackage>() {
+        @Override
+        public int compare(TopPackage lhs, TopPackage rhs) {
+            return lhs.order < rhs.order ? -1 : (lhs.order == rhs.order ? 0 : 1);
+        }
+    };
 
     static class TopPackage {
         public TopPackage(String pkgName, String clsName, int index) {
@@ -118,43 +166,86 @@ class AllAppsList {
         if (mAppFilter != null && !mAppFilter.shouldShowApp(info.componentName)) {
             return;
         }
-        if (findActivity(data, info.componentName)) {
+        if (findAppLocked(info.componentName) != null) {
             LauncherLog.i(TAG, "Application " + info + " already exists in app list, app = " + info);
             return;
         }
-		String hide = SystemProperties.get("persist.sys.hide");
-		Log.d("ChenMin", "127 people = " + hide);		
-        String rohide = SystemProperties.get("ro.sys.hide", "");//"com.android.contacts/com.android.dialer/com.android.mms/com.mediatek.StkSelection";
-        
-		
-		if (rohide.trim().length() > 0) {
-	        String rohidearr[] = rohide.split("/");
-	        //System.out.println("rohidearr = " + rohidearr);
-        
-			if (rohidearr.length > 0) {
-				if (hide.equals("customer")) {
-				    for (int m = 0; m < rohidearr.length; m++) {
-						if (info.componentName.getPackageName().contains(rohidearr[m].trim())) {
-							return;
-						} 
-		        		//System.out.println("rohidearr = " + rohidearr[m]);
-		        	}
-		
-				}		
-			}
-		}
+        if (isHiddenLocked(info.componentName)) {
+            return;
+        }
     
 		
         data.add(info);
+        indexAppLocked(info);
         added.add(info);
     }
 
+    /**
+     * M: Whether the given app is hidden by ro.sys.hide. This only looks at the
+     * filter built by refreshHideListLocked(), so it reads no property and
+     * allocates nothing per app.
+     */
+    private boolean isHiddenLocked(ComponentName component) {
+        if (mHideMode == null) {
+            refreshHideListLocked();
+        }
+        final String[] hideList = mHideList;
+        if (hideList == null) {
+            return false;
+        }
+        final String packageName = component.getPackageName();
+        for (int i = 0; i < hideList.length; i++) {
+            if (packageName.contains(hideList[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * M: Read persist.sys.hide again and rebuild the filter if it changed. This
+     * is done once per full load or package change instead of once per app.
+     */
+    private void refreshHideListLocked() {
+        final String mode = SystemProperties.get(PROPERTY_HIDE_MODE);
+        if (mode.equals(mHideMode)) {
+            return;
+        }
+        mHideMode = mode;
+        mHideList = HIDE_MODE.equals(mode) ? getHideList() : null;
+        if (mHideList != null && mHideList.length == 0) {
+            mHideList = null;
+        }
+        LauncherLog.d(TAG, "refreshHideListLocked: " + PROPERTY_HIDE_MODE + " = " + mode
+                + ", hidden = " + (mHideList != null ? mHideList.length : 0));
+    }
+
+    /**
+     * M: Split ro.sys.hide, "com.android.contacts/com.android.mms" for example,
+     * into the package name parts to hide.
+     */
+    private static String[] getHideList() {
+        if (sHideList == null) {
+            final String hideList = SystemProperties.get(PROPERTY_HIDE_LIST, "");
+            final String[] names = hideList.trim().length() > 0 ? hideList.split("/") : new String[0];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].trim();
+            }
+            sHideList = names;
+        }
+        return sHideList;
+    }
+
     public void clear() {
         if (LauncherLog.DEBUG) {
             LauncherLog.d(TAG, "clear all data in app list: app size = " + data.size());
         }
 
         data.clear();
+        mAppsByComponent.clear();
+        mAppsByPackage.clear();
+        mIndexedCount = 0;
+        refreshHideListLocked();
         // TODO: do we clear these too?
         added.clear();
         removed.clear();
@@ -173,6 +264,7 @@ class AllAppsList {
      * Add the icons for the supplied apk called packageName.
      */
     public void addPackage(Context context, String packageName) {
+        refreshHideListLocked();
         final List<ResolveInfo> matches = findActivitiesForPackage(context, packageName);
 
         if (LauncherLog.DEBUG) {
@@ -195,13 +287,13 @@ class AllAppsList {
             LauncherLog.d(TAG, "removePackage: packageName = " + packageName + ", data size = " + data.size());
         }
 
-        for (int i = data.size() - 1; i >= 0; i--) {
-            AppInfo info = data.get(i);
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())) {
+        final ArrayList<AppInfo> apps = findAppsForPackageLocked(packageName);
+        if (apps != null) {
+            for (AppInfo info : new ArrayList<AppInfo>(apps)) {
                 removed.add(info);
-                data.remove(i);
+                unindexAppLocked(info);
             }
+            compactDataLocked(packageName);
         }
         // This is more aggressive than it needs to be.
         mIconCache.flush();
@@ -211,29 +303,42 @@ class AllAppsList {
      * Add and remove icons for this package which has been updated.
      */
     public void updatePackage(Context context, String packageName) {
+        refreshHideListLocked();
         final List<ResolveInfo> matches = findActivitiesForPackage(context, packageName);
         if (LauncherLog.DEBUG) {
             LauncherLog.d(TAG, "updatePackage: packageName = " + packageName + ", matches = " + matches.size());
         }
 
         if (matches.size() > 0) {
+            // The activities the package has now, by class name, so that both
+            // sides of the diff below are walked once.
+            final int count = matches.size();
+            final HashSet<String> matchedClasses = new HashSet<String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                matchedClasses.add(matches.get(i).activityInfo.name);
+            }
+
             // Find disabled/removed activities and remove them from data and add them
             // to the removed list.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final AppInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    if (!findActivity(matches, component)) {
+            final ArrayList<AppInfo> apps = findAppsForPackageLocked(packageName);
+            if (apps != null) {
+                final int oldCount = apps.size();
+                for (int i = oldCount - 1; i >= 0; i--) {
+                    final AppInfo applicationInfo = apps.get(i);
+                    final ComponentName component = applicationInfo.intent.getComponent();
+                    if (!matchedClasses.contains(component.getClassName())) {
                         removed.add(applicationInfo);
                         mIconCache.remove(component);
-                        data.remove(i);
+                        unindexAppLocked(applicationInfo);
                     }
                 }
+                if (apps.size() != oldCount) {
+                    compactDataLocked(packageName);
+                }
             }
 
             // Find enabled activities and add them to the adapter
             // Also updates existing activities with new labels/icons
-            int count = matches.size();
             for (int i = 0; i < count; i++) {
                 final ResolveInfo info = matches.get(i);
                 final String pkgName = info.activityInfo.applicationInfo.packageName;
@@ -252,17 +357,18 @@ class AllAppsList {
             }
         } else {
             // Remove all data for this package.
-            for (int i = data.size() - 1; i >= 0; i--) {
-                final AppInfo applicationInfo = data.get(i);
-                final ComponentName component = applicationInfo.intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
+            final ArrayList<AppInfo> apps = findAppsForPackageLocked(packageName);
+            if (apps != null) {
+                for (AppInfo applicationInfo : new ArrayList<AppInfo>(apps)) {
+                    final ComponentName component = applicationInfo.intent.getComponent();
                     if (LauncherLog.DEBUG) {
                         LauncherLog.d(TAG, "Remove application from launcher: component = " + component);
                     }
                     removed.add(applicationInfo);
                     mIconCache.remove(component);
-                    data.remove(i);
+                    unindexAppLocked(applicationInfo);
                 }
+                compactDataLocked(packageName);
             }
         }
     }
@@ -298,31 +404,94 @@ class AllAppsList {
     }
 
     /**
-     * Returns whether <em>apps</em> contains <em>component</em>.
+     * Find an ApplicationInfo object for the given packageName and className.
      */
-    private static boolean findActivity(ArrayList<AppInfo> apps, ComponentName component) {
-        final int N = apps.size();
-        for (int i=0; i<N; i++) {
-            final AppInfo info = apps.get(i);
-            if (info.componentName.equals(component)) {
-                return true;
+    private AppInfo findApplicationInfoLocked(String packageName, String className) {
+        return findAppLocked(new ComponentName(packageName, className));
+    }
+
+    /**
+     * M: Find the app in data for the given component through the component index.
+     */
+    private AppInfo findAppLocked(ComponentName component) {
+        ensureIndexLocked();
+        return mAppsByComponent.get(component);
+    }
+
+    /**
+     * M: Find the apps in data which belong to the given package, or null if there
+     * is none. The returned list is the live index entry.
+     */
+    private ArrayList<AppInfo> findAppsForPackageLocked(String packageName) {
+        ensureIndexLocked();
+        return mAppsByPackage.get(packageName);
+    }
+
+    /**
+     * M: Add the given app, which has just been added to data, to the indexes.
+     */
+    private void indexAppLocked(AppInfo info) {
+        mAppsByComponent.put(info.componentName, info);
+        final String packageName = info.componentName.getPackageName();
+        ArrayList<AppInfo> apps = mAppsByPackage.get(packageName);
+        if (apps == null) {
+            apps = new ArrayList<AppInfo>(1);
+            mAppsByPackage.put(packageName, apps);
+        }
+        apps.add(info);
+        mIndexedCount++;
+    }
+
+    /**
+     * M: Remove the given app, which has just been removed from data, from the indexes.
+     */
+    private void unindexAppLocked(AppInfo info) {
+        if (mAppsByComponent.get(info.componentName) == info) {
+            mAppsByComponent.remove(info.componentName);
+        }
+        final String packageName = info.componentName.getPackageName();
+        final ArrayList<AppInfo> apps = mAppsByPackage.get(packageName);
+        if (apps != null && apps.remove(info)) {
+            mIndexedCount--;
+            if (apps.isEmpty()) {
+                mAppsByPackage.remove(packageName);
             }
         }
-        return false;
     }
 
     /**
-     * Find an ApplicationInfo object for the given packageName and className.
+     * M: data is public and may be changed without going through this class, so
+     * rebuild the indexes whenever they no longer cover it.
      */
-    private AppInfo findApplicationInfoLocked(String packageName, String className) {
-        for (AppInfo info: data) {
-            final ComponentName component = info.intent.getComponent();
-            if (packageName.equals(component.getPackageName())
-                    && className.equals(component.getClassName())) {
-                return info;
+    private void ensureIndexLocked() {
+        if (mIndexedCount == data.size()) {
+            return;
+        }
+        mAppsByComponent.clear();
+        mAppsByPackage.clear();
+        mIndexedCount = 0;
+        for (AppInfo info : data) {
+            indexAppLocked(info);
+        }
+    }
+
+    /**
+     * M: Drop the apps of the given package that are no longer indexed from data,
+     * in a single pass which keeps the order of the remaining apps.
+     */
+    private void compactDataLocked(String packageName) {
+        final ArrayList<AppInfo> data = this.data;
+        final ArrayList<AppInfo> apps = mAppsByPackage.get(packageName);
+        final int count = data.size();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            final AppInfo info = data.get(i);
+            if (!packageName.equals(info.componentName.getPackageName())
+                    || (apps != null && apps.contains(info))) {
+                data.set(kept++, info);
             }
         }
-        return null;
+        data.subList(kept, count).clear();
     }
 
     /**
@@ -337,8 +506,30 @@ class AllAppsList {
             return bRet;
         }
 
+        final long loadTime = SystemClock.uptimeMillis();
         sTopPackages = new ArrayList<TopPackage>();
 
+        if (!readTopPackageCache(context) && parseTopPackages(context)) {
+            writeTopPackageCache(context);
+        }
+
+        ensureTopPackageOrdered();
+        buildTopPackageIndex();
+        if (LauncherLog.DEBUG) {
+            LauncherLog.d(TAG, "loadTopPackage: " + sTopPackages.size() + " top packages took "
+                    + (SystemClock.uptimeMillis() - loadTime) + "ms");
+        }
+
+        return bRet;
+    }
+
+    /**
+     * M: Parse the top packages from top_package.xml into sTopPackages.
+     *
+     * @param context
+     * @return true if the whole file was parsed.
+     */
+    private static boolean parseTopPackages(final Context context) {
         try {
             XmlResourceParser parser = context.getResources().getXml(R.xml.default_toppackage);
             AttributeSet attrs = Xml.asAttributeSet(parser);
@@ -367,100 +558,233 @@ class AllAppsList {
 
                 a.recycle();
             }
+            return true;
         } catch (XmlPullParserException e) {
             LauncherLog.w(TAG, "Got XmlPullParserException while parsing toppackage.", e);
         } catch (IOException e) {
             LauncherLog.w(TAG, "Got IOException while parsing toppackage.", e);
         }
+        return false;
+    }
 
-        return bRet;
+    /**
+     * M: Load sTopPackages from the cache written by writeTopPackageCache(),
+     * unless it was written by another build or another copy of this apk. A
+     * system apk replaced by an OTA often keeps its versionCode and update
+     * time, so the build fingerprint and the apk file are checked as well.
+     *
+     * @param context
+     * @return true if sTopPackages was loaded from the cache.
+     */
+    private static boolean readTopPackageCache(final Context context) {
+        final PackageInfo packageInfo = getPackageInfo(context);
+        if (packageInfo == null) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    getTopPackageCacheFile(context).openRead()));
+            final File apk = new File(packageInfo.applicationInfo.sourceDir);
+            if (in.readInt() != TOP_PACKAGE_CACHE_VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())
+                    || in.readInt() != packageInfo.versionCode
+                    || in.readLong() != packageInfo.lastUpdateTime
+                    || in.readLong() != apk.lastModified()
+                    || in.readLong() != apk.length()) {
+                return false;
+            }
+
+            final int count = in.readInt();
+            if (count < 0) {
+                return false;
+            }
+            final ArrayList<TopPackage> topPackages = new ArrayList<TopPackage>(
+                    Math.min(count, DEFAULT_APPLICATIONS_NUMBER));
+            for (int i = 0; i < count; i++) {
+                final String packageName = readCacheString(in);
+                final String className = readCacheString(in);
+                topPackages.add(new TopPackage(packageName, className, in.readInt()));
+            }
+            sTopPackages = topPackages;
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            LauncherLog.w(TAG, "Got IOException while reading toppackage cache.", e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     /**
-     * M: Get the index for the given appInfo in the top packages.
+     * M: Save sTopPackages, keyed on the build fingerprint and on the version,
+     * update time, modification time and length of this apk.
      *
-     * @param appInfo
-     * @return the index of the given appInfo.
+     * @param context
      */
-    static int getTopPackageIndex(final AppInfo appInfo) {
-        int retIndex = -1;
-        if (sTopPackages == null || sTopPackages.isEmpty() || appInfo == null) {
-            return retIndex;
+    private static void writeTopPackageCache(final Context context) {
+        final PackageInfo packageInfo = getPackageInfo(context);
+        if (packageInfo == null) {
+            return;
         }
 
+        final AtomicFile file = getTopPackageCacheFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            final File apk = new File(packageInfo.applicationInfo.sourceDir);
+            out.writeInt(TOP_PACKAGE_CACHE_VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(packageInfo.versionCode);
+            out.writeLong(packageInfo.lastUpdateTime);
+            out.writeLong(apk.lastModified());
+            out.writeLong(apk.length());
+            out.writeInt(sTopPackages.size());
+            for (TopPackage tp : sTopPackages) {
+                writeCacheString(out, tp.packageName);
+                writeCacheString(out, tp.className);
+                out.writeInt(tp.order);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            LauncherLog.w(TAG, "Got IOException while writing toppackage cache.", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private static AtomicFile getTopPackageCacheFile(final Context context) {
+        return new AtomicFile(new File(context.getCacheDir(), TOP_PACKAGE_CACHE));
+    }
+
+    private static PackageInfo getPackageInfo(final Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            LauncherLog.w(TAG, "Can't find own package info.", e);
+            return null;
+        }
+    }
+
+    private static String readCacheString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeCacheString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * M: Index the top packages by component. sTopPackages is already sorted by
+     * order here, so the first entry of a component wins as it did when the list
+     * was scanned.
+     */
+    private static void buildTopPackageIndex() {
+        final HashMap<ComponentName, TopPackage> index =
+                new HashMap<ComponentName, TopPackage>(sTopPackages.size() * 2);
         for (TopPackage tp : sTopPackages) {
-            if (appInfo.componentName.getPackageName().equals(tp.packageName)
-                    && appInfo.componentName.getClassName().equals(tp.className)) {
-                retIndex = tp.order;
-                break;
+            if (tp.packageName == null || tp.className == null) {
+                continue;
+            }
+            final ComponentName component = new ComponentName(tp.packageName, tp.className);
+            if (!index.containsKey(component)) {
+                index.put(component, tp);
             }
         }
+        sTopPackageIndex = index;
+    }
 
-        return retIndex;
+    /**
+     * M: Get the index for the given appInfo in the top packages.
+     *
+     * @param appInfo
+     * @return the index of the given appInfo.
+     */
+    static int getTopPackageIndex(final AppInfo appInfo) {
+        if (sTopPackageIndex == null || sTopPackageIndex.isEmpty() || appInfo == null) {
+            return -1;
+        }
+
+        final TopPackage tp = sTopPackageIndex.get(appInfo.componentName);
+        return tp != null ? tp.order : -1;
     }
 
     /**
-     * M: Reorder all apps index according to TopPackages.
+     * M: Reorder all apps index according to TopPackages. The apps of the top
+     * packages found in added are taken out of data and merged back at their
+     * order, in a single pass over added and data.
      */
     void reorderApplist() {
-        final long sortTime = DEBUG_LOADERS_REORDER ? SystemClock.uptimeMillis() : 0;
+        final long sortTime = SystemClock.uptimeMillis();
 
-        if (sTopPackages == null || sTopPackages.isEmpty()) {
+        if (sTopPackages == null || sTopPackages.isEmpty() || sTopPackageIndex == null) {
             return;
         }
-        ensureTopPackageOrdered();
-
-        final ArrayList<AppInfo> dataReorder = new ArrayList<AppInfo>(
-                DEFAULT_APPLICATIONS_NUMBER);
 
-        for (TopPackage tp : sTopPackages) {
-            int loop = 0;
-            for (AppInfo ai : added) {
-                if (DEBUG_LOADERS_REORDER) {
-                    LauncherLog.d(TAG, "reorderApplist: remove loop = " + loop);
-                }
+        // The first app in added wins for each top package.
+        final HashMap<TopPackage, AppInfo> topApps = new HashMap<TopPackage, AppInfo>();
+        for (AppInfo ai : added) {
+            final TopPackage tp = sTopPackageIndex.get(ai.componentName);
+            if (tp != null && !topApps.containsKey(tp)) {
+                topApps.put(tp, ai);
+            }
+        }
 
-                if (ai.componentName.getPackageName().equals(tp.packageName)
-                        && ai.componentName.getClassName().equals(tp.className)) {
-                    if (DEBUG_LOADERS_REORDER) {
-                        LauncherLog.d(TAG, "reorderApplist: remove packageName = "
-                                + ai.componentName.getPackageName());
-                    }
-                    data.remove(ai);
-                    dataReorder.add(ai);
-                    dumpData();
-                    break;
+        if (!topApps.isEmpty()) {
+            final ArrayList<AppInfo> data = this.data;
+            final HashSet<AppInfo> moved = new HashSet<AppInfo>(topApps.values());
+            final ArrayList<AppInfo> rest = new ArrayList<AppInfo>(data.size());
+            for (AppInfo ai : data) {
+                if (!moved.remove(ai)) {
+                    rest.add(ai);
                 }
-                loop++;
             }
-        }
 
-        for (TopPackage tp : sTopPackages) {
-            int loop = 0;
-            int newIndex = 0;
-            for (AppInfo ai : dataReorder) {
+            // sTopPackages is sorted by order, so the apps are inserted at growing
+            // indexes and the other apps only need to be copied up to each of them.
+            data.clear();
+            final int restCount = rest.size();
+            final int addedCount = added.size();
+            int next = 0;
+            for (TopPackage tp : sTopPackages) {
+                final AppInfo ai = topApps.get(tp);
+                if (ai == null) {
+                    continue;
+                }
+                final int newIndex = Math.min(Math.max(tp.order, 0), addedCount);
+                while (data.size() < newIndex && next < restCount) {
+                    data.add(rest.get(next++));
+                }
                 if (DEBUG_LOADERS_REORDER) {
-                    LauncherLog.d(TAG, "reorderApplist: added loop = " + loop + ", packageName = "
-                            + ai.componentName.getPackageName());
+                    LauncherLog.d(TAG, "reorderApplist: packageName = "
+                            + ai.componentName.getPackageName() + ", newIndex = " + newIndex);
                 }
-
-                if (ai.componentName.getPackageName().equals(tp.packageName)
-                        && ai.componentName.getClassName().equals(tp.className)) {
-                    newIndex = Math.min(Math.max(tp.order, 0), added.size());
-                    if (DEBUG_LOADERS_REORDER) {
-                        LauncherLog.d(TAG, "reorderApplist: added newIndex = " + newIndex);
-                    }
-                    /// M: make sure the array list not out of bound
-                    if (newIndex < data.size()) {
-                        data.add(newIndex, ai);
-                    } else {
-                        data.add(ai);
-                    }
-                    dumpData();
-                    break;
+                /// M: make sure the array list not out of bound
+                if (newIndex < data.size()) {
+                    data.add(newIndex, ai);
+                } else {
+                    data.add(ai);
                 }
-                loop++;
             }
+            while (next < restCount) {
+                data.add(rest.get(next++));
+            }
+            dumpData();
         }
 
         if (added.size() == data.size()) {
@@ -468,8 +792,9 @@ class AllAppsList {
             LauncherLog.d(TAG, "reorderApplist added.size() == data.size()");
         }
 
-        if (DEBUG_LOADERS_REORDER) {
-            LauncherLog.d(TAG, "sort and reorder took " + (SystemClock.uptimeMillis() - sortTime) + "ms");
+        if (LauncherLog.DEBUG) {
+            LauncherLog.d(TAG, "reorderApplist: moved " + topApps.size() + " of " + data.size()
+                    + " apps, took " + (SystemClock.uptimeMillis() - sortTime) + "ms");
         }
     }
 
@@ -494,43 +819,10 @@ class AllAppsList {
      */
 
     static void ensureTopPackageOrdered() {
-        ArrayList<TopPackage> tpOrderList = new ArrayList<TopPackage>(DEFAULT_APPLICATIONS_NUMBER);
-        boolean bFirst = true;
-        for (TopPackage tp : sTopPackages) {
-            if (bFirst) {
-                tpOrderList.add(tp);
-                bFirst = false;
-            } else {
-                for (int i = tpOrderList.size() - 1; i >= 0; i--) {
-                    TopPackage tpItor = tpOrderList.get(i);
-                    if (0 == i) {
-                        if (tp.order < tpOrderList.get(0).order) {
-                            tpOrderList.add(0, tp);
-                        } else {
-                            tpOrderList.add(1, tp);
-                        }
-                        break;
-                    }
-
-                    if ((tp.order < tpOrderList.get(i).order)
-                        && (tp.order >= tpOrderList.get(i - 1).order)) {
-                        tpOrderList.add(i, tp);
-                        break;
-                    } else if (tp.order > tpOrderList.get(i).order) {
-                        tpOrderList.add(i + 1, tp);
-                        break;
-                    }
-                }
-            }
-        }
-
-        if (sTopPackages.size() == tpOrderList.size()) {
-            sTopPackages = (ArrayList<TopPackage>) tpOrderList.clone();
-            tpOrderList = null;
-            LauncherLog.d(TAG, "ensureTopPackageOrdered done");
-        } else {
-            LauncherLog.d(TAG, "some mistake may occur when ensureTopPackageOrdered");
-        }
+        // Collections.sort() is stable, so entries with the same order keep the
+        // order of top_package.xml.
+        Collections.sort(sTopPackages, TOP_PACKAGE_ORDER);
+        LauncherLog.d(TAG, "ensureTopPackageOrdered done");
     }
 
     /**
@@ -543,11 +835,12 @@ class AllAppsList {
             LauncherLog.d(TAG, "Add application to data list: app = " + info.componentName);
         }
 
-        if (findActivity(data, info.componentName)) {
+        if (findAppLocked(info.componentName) != null) {
             LauncherLog.i(TAG, "The app " + info + " is already exist in data list.");
             return;
         }
         data.add(info);
+        indexAppLocked(info);
     }
 
     /**
@@ -41,6 +41,8 @@ import android.os.RemoteException;
 import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.util.Xml;
 import android.util.Pair;
 
@@ -48,11 +50,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Random;
-import java.util.TimeZone;
 import java.util.List;
 
 import com.mediatek.common.IFwkExt;
@@ -75,6 +76,7 @@ public class SyncStorageEngine extends Handler {
     private static final String XML_ATTR_SYNC_RANDOM_OFFSET = "offsetInSeconds";
     private static final String XML_ATTR_ENABLED = "enabled";
     private static final String XML_ATTR_USER = "user";
+    private static final String XML_ATTR_JOURNAL_GENERATION = "journalGeneration";
     private static final String XML_TAG_LISTEN_FOR_TICKLES = "listenForTickles";
 
     private static final long DEFAULT_POLL_FREQUENCY_SECONDS = 60 * 60 * 24; // One day
@@ -134,11 +136,30 @@ public class SyncStorageEngine extends Handler {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    // Sent to this handler to deliver the changes reported during a window.
+    private static final int MSG_REPORT_CHANGES = 3;
+    private static final long DEFAULT_CHANGE_REPORT_WINDOW = 100; // milliseconds
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
     private static final int ACCOUNTS_VERSION = 2;
 
+    // the version of the accounts journal record format
+    private static final int ACCOUNTS_JOURNAL_VERSION = 1;
+
+    // tokens of the records appended to the accounts journal
+    private static final int ACCOUNTS_JOURNAL_HEADER = 200;
+    private static final int ACCOUNTS_JOURNAL_AUTHORITY = 201;
+    private static final int ACCOUNTS_JOURNAL_REMOVE_AUTHORITY = 202;
+    private static final int ACCOUNTS_JOURNAL_MASTER_SYNC = 203;
+
+    // every record ends with its token xor'ed with this, so a torn tail can be detected
+    private static final int ACCOUNTS_JOURNAL_RECORD_CHECK = 0x4a524e4c;
+
+    // the journal is folded back into accounts.xml after this many records
+    private static final int ACCOUNTS_JOURNAL_COMPACT_THRESHOLD = 128;
+
     private static HashMap<String, String> sAuthorityRenames;
 
     private IFwkExt mExt = null;
@@ -159,6 +180,8 @@ public class SyncStorageEngine extends Handler {
 
         int authorityId;
         byte[] flatExtras;
+        // ordinal of this op's record in the pending ops file, or -1 if not stored
+        int handle = -1;
 
         PendingOperation(Account account, int userId, int source,
                 String authority, Bundle extras, boolean expedited) {
@@ -192,6 +215,51 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Hash key of an authority: its account, user and authority name.  Keys
+     * stored in the index are never modified; a single mutable instance is
+     * reused for lookups so that finding an authority allocates nothing.
+     */
+    private static final class AuthorityKey {
+        Account account;
+        int userId;
+        String authority;
+        int hash;
+
+        AuthorityKey set(Account account, int userId, String authority) {
+            this.account = account;
+            this.userId = userId;
+            this.authority = authority;
+            int h = 17;
+            h = 31 * h + (account != null ? account.hashCode() : 0);
+            h = 31 * h + userId;
+            h = 31 * h + (authority != null ? authority.hashCode() : 0);
+            this.hash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof AuthorityKey)) {
+                return false;
+            }
+            final AuthorityKey other = (AuthorityKey) o;
+            return hash == other.hash
+                    && userId == other.userId
+                    && (account == null ? other.account == null : account.equals(other.account))
+                    && (authority == null ? other.authority == null
+                            : authority.equals(other.authority));
+        }
+    }
+
     public static class AuthorityInfo {
         final Account account;
         final int userId;
@@ -241,6 +309,45 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Immutable copy of the authority settings and master sync flags.  The
+     * settings getters read the latest snapshot without taking mAuthorities,
+     * so they never wait behind the status, statistics or pending file writes.
+     * Any change to the settings drops the snapshot and the next reader, or
+     * the next file write, builds a new one.
+     * <p>
+     * Backoff and delay-until times are not part of it: SyncManager changes
+     * them on every retry, so they are read under mAuthorities instead and
+     * their copies in the snapshot are not kept current.
+     */
+    private static final class SettingsSnapshot {
+        final HashMap<AuthorityKey, AuthorityInfo> authorities;
+        // (null, userId, authority) of every enabled authority, for account-less queries
+        final HashMap<AuthorityKey, Boolean> enabledAnyAccount;
+        // syncable of the last authority with a given name, for account-less queries
+        final HashMap<String, Integer> syncableAnyAccount;
+        final SparseArray<Boolean> masterSyncAutomatically;
+
+        SettingsSnapshot(SparseArray<AuthorityInfo> authorities,
+                SparseArray<Boolean> masterSyncAutomatically) {
+            final int N = authorities.size();
+            this.authorities = new HashMap<AuthorityKey, AuthorityInfo>(N * 2);
+            this.enabledAnyAccount = new HashMap<AuthorityKey, Boolean>();
+            this.syncableAnyAccount = new HashMap<String, Integer>();
+            for (int i = 0; i < N; i++) {
+                AuthorityInfo authority = new AuthorityInfo(authorities.valueAt(i));
+                this.authorities.put(new AuthorityKey().set(authority.account, authority.userId,
+                        authority.authority), authority);
+                if (authority.enabled) {
+                    this.enabledAnyAccount.put(new AuthorityKey().set(null, authority.userId,
+                            authority.authority), Boolean.TRUE);
+                }
+                this.syncableAnyAccount.put(authority.authority, authority.syncable);
+            }
+            this.masterSyncAutomatically = masterSyncAutomatically.clone();
+        }
+    }
+
     public static class SyncHistoryItem {
         int authorityId;
         int historyId;
@@ -284,8 +391,28 @@ public class SyncStorageEngine extends Handler {
     private final HashMap<AccountAndUser, AccountInfo> mAccounts
             = new HashMap<AccountAndUser, AccountInfo>();
 
-    private final ArrayList<PendingOperation> mPendingOperations =
-            new ArrayList<PendingOperation>();
+    // Index of mAuthorities by (account, user, authority), and the reusable lookup key.
+    private final HashMap<AuthorityKey, AuthorityInfo> mAuthorityIndex
+            = new HashMap<AuthorityKey, AuthorityInfo>();
+    private final AuthorityKey mLookupKey = new AuthorityKey();
+
+    // Lookup keys of the lock-free settings readers, one per calling thread.
+    private static final ThreadLocal<AuthorityKey> sReaderKey = new ThreadLocal<AuthorityKey>() {
+        @Override
+        protected AuthorityKey initialValue() {
+            return new AuthorityKey();
+        }
+    };
+
+    // Latest settings snapshot, or null if the settings changed since it was built.
+    private volatile SettingsSnapshot mSettingsSnapshot;
+
+    // Pending operations in insertion order, keyed by their handle.
+    private final LinkedHashMap<Integer, PendingOperation> mPendingOperations =
+            new LinkedHashMap<Integer, PendingOperation>();
+
+    // Number of pending operations per authority id.
+    private final SparseIntArray mPendingCounts = new SparseIntArray();
 
     private final SparseArray<ArrayList<SyncInfo>> mCurrentSyncs
             = new SparseArray<ArrayList<SyncInfo>>();
@@ -293,19 +420,35 @@ public class SyncStorageEngine extends Handler {
     private final SparseArray<SyncStatusInfo> mSyncStatus =
             new SparseArray<SyncStatusInfo>();
 
-    private final ArrayList<SyncHistoryItem> mSyncHistory =
-            new ArrayList<SyncHistoryItem>();
+    // The last MAX_HISTORY sync events, as columns of a ring whose newest
+    // entry is at mHistoryHead.  Events are recorded without allocating.
+    private final int[] mHistoryAuthorityId = new int[MAX_HISTORY];
+    private final int[] mHistoryId = new int[MAX_HISTORY];
+    private final long[] mHistoryEventTime = new long[MAX_HISTORY];
+    private final long[] mHistoryElapsedTime = new long[MAX_HISTORY];
+    private final int[] mHistorySource = new int[MAX_HISTORY];
+    private final int[] mHistoryEvent = new int[MAX_HISTORY];
+    private final long[] mHistoryUpstreamActivity = new long[MAX_HISTORY];
+    private final long[] mHistoryDownstreamActivity = new long[MAX_HISTORY];
+    private final String[] mHistoryMesg = new String[MAX_HISTORY];
+    private final boolean[] mHistoryInitialization = new boolean[MAX_HISTORY];
+    private int mHistoryHead = 0;
+    private int mHistorySize = 0;
 
     private final RemoteCallbackList<ISyncStatusObserver> mChangeListeners
             = new RemoteCallbackList<ISyncStatusObserver>();
 
     private int mNextAuthorityId = 0;
 
-    // We keep 4 weeks of stats.
-    private final DayStats[] mDayStats = new DayStats[7*4];
-    private final Calendar mCal;
-    private int mYear;
-    private int mYearInDays;
+    // We keep 4 weeks of stats, as columns of a ring whose newest day is at mDayStatsHead.
+    private static final int DAY_STATS_COUNT = 7*4;
+    private final int[] mDayStatsDay = new int[DAY_STATS_COUNT];
+    private final int[] mDayStatsSuccessCount = new int[DAY_STATS_COUNT];
+    private final long[] mDayStatsSuccessTime = new long[DAY_STATS_COUNT];
+    private final int[] mDayStatsFailureCount = new int[DAY_STATS_COUNT];
+    private final long[] mDayStatsFailureTime = new long[DAY_STATS_COUNT];
+    private int mDayStatsHead = 0;
+    private int mDayStatsSize = 0;
 
     private final Context mContext;
 
@@ -320,6 +463,16 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mAccountInfoFile;
 
+    /**
+     * This file contains the changes made to the account settings since
+     * accounts.xml was last written, as a sequence of binary records.  Each
+     * change is appended to it instead of rewriting the whole xml file, and
+     * it is folded back into accounts.xml once it grows too long.
+     */
+    private final AtomicFile mAccountJournalFile;
+    private int mAccountJournalGeneration = 0;
+    private int mAccountJournalRecords = 0;
+
     /**
      * This file contains the current sync status.  We would like to retain
      * it across boots, but its loss is not the end of the world, so we store
@@ -327,6 +480,18 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mStatusFile;
 
+    /**
+     * This file contains the sync status records changed since status.bin
+     * was last written.  Only the changed records are appended to it, and
+     * it is folded back into status.bin once it grows too long.
+     */
+    private final AtomicFile mStatusDeltaFile;
+    private static final int STATUS_DELTA_CHECKPOINT_THRESHOLD = 256;
+    private final SparseBooleanArray mDirtyStatus = new SparseBooleanArray();
+    private boolean mStatusCheckpointNeeded = true;
+    private int mStatusGeneration = 0;
+    private int mStatusDeltaRecords = 0;
+
     /**
      * This file contains sync statistics.  This is purely debugging information
      * so is written infrequently and can be thrown away at any time.
@@ -336,11 +501,15 @@ public class SyncStorageEngine extends Handler {
     /**
      * This file contains the pending sync operations.  It is a binary file,
      * which must be updated every time an operation is added or removed,
-     * so we have special handling of it.
+     * so we have special handling of it: added operations are appended,
+     * and removed ones are marked with an appended tombstone naming the
+     * ordinal of their record.  The file is only rewritten once the
+     * tombstones outnumber the live operations.
      */
     private final AtomicFile mPendingFile;
     private static final int PENDING_FINISH_TO_WRITE = 4;
-    private int mNumPendingFinished = 0;
+    private int mNextPendingHandle = 0;
+    private int mNumPendingTombstones = 0;
 
     private int mNextHistoryId = 0;
     private SparseArray<Boolean> mMasterSyncAutomatically = new SparseArray<Boolean>();
@@ -348,12 +517,18 @@ public class SyncStorageEngine extends Handler {
 
     private OnSyncRequestListener mSyncRequestListener;
 
+    /**
+     * Status changes are not reported to the listeners as they happen: their
+     * masks are merged here, and a single callback per listener delivers
+     * them on this handler's thread once the report window has passed.
+     */
+    private volatile long mChangeReportWindow = DEFAULT_CHANGE_REPORT_WINDOW;
+    private int mPendingChanges = 0;
+
     private SyncStorageEngine(Context context, File dataDir) {
         mContext = context;
         sSyncStorageEngine = this;
 
-        mCal = Calendar.getInstance(TimeZone.getTimeZone("GMT+0"));
-
         mDefaultMasterSyncAutomatically = mContext.getResources().getBoolean(
                com.android.internal.R.bool.config_syncstorageengine_masterSyncAutomatically);
 
@@ -361,15 +536,20 @@ public class SyncStorageEngine extends Handler {
         File syncDir = new File(systemDir, "sync");
         syncDir.mkdirs();
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"));
+        mAccountJournalFile = new AtomicFile(new File(syncDir, "accounts.journal"));
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
+        mStatusDeltaFile = new AtomicFile(new File(syncDir, "status.delta"));
         mPendingFile = new AtomicFile(new File(syncDir, "pending.bin"));
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
 
         readAccountInfoLocked();
+        readAccountJournalLocked();
         readStatusLocked();
+        readStatusDeltaLocked();
         readPendingOperationsLocked();
         readStatisticsLocked();
         readAndDeleteLegacyAccountInfoLocked();
+        invalidateSettingsLocked();
         writeAccountInfoLocked();
         writeStatusLocked();
         writePendingOperationsLocked();
@@ -415,6 +595,8 @@ public class SyncStorageEngine extends Handler {
             synchronized (mAuthorities) {
                 writeStatisticsLocked();
             }
+        } else if (msg.what == MSG_REPORT_CHANGES) {
+            deliverChanges();
         }
     }
 
@@ -434,9 +616,44 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Set how long status changes are collected before they are reported
+     * to the listeners; 0 reports them as soon as possible.
+     */
+    @VisibleForTesting
+    public void setChangeReportWindow(long millis) {
+        mChangeReportWindow = Math.max(millis, 0);
+    }
+
     private void reportChange(int which) {
+        if (which == 0) {
+            return;
+        }
+        synchronized (mAuthorities) {
+            final boolean scheduled = mPendingChanges != 0;
+            mPendingChanges |= which;
+            if (scheduled) {
+                // Goes out with the report already scheduled for this window.
+                return;
+            }
+        }
+        sendEmptyMessageDelayed(MSG_REPORT_CHANGES, mChangeReportWindow);
+    }
+
+    /**
+     * Deliver the changes collected during the last window: one callback
+     * per listener, with the part of the merged mask it asked for.
+     */
+    private void deliverChanges() {
         ArrayList<ISyncStatusObserver> reports = null;
+        int[] reportMasks = null;
+        final int which;
         synchronized (mAuthorities) {
+            which = mPendingChanges;
+            mPendingChanges = 0;
+            if (which == 0) {
+                return;
+            }
             int i = mChangeListeners.beginBroadcast();
             while (i > 0) {
                 i--;
@@ -445,8 +662,10 @@ public class SyncStorageEngine extends Handler {
                     continue;
                 }
                 if (reports == null) {
-                    reports = new ArrayList<ISyncStatusObserver>(i);
+                    reports = new ArrayList<ISyncStatusObserver>(i + 1);
+                    reportMasks = new int[i + 1];
                 }
+                reportMasks[reports.size()] = which & mask.intValue();
                 reports.add(mChangeListeners.getBroadcastItem(i));
             }
             mChangeListeners.finishBroadcast();
@@ -461,7 +680,7 @@ public class SyncStorageEngine extends Handler {
             while (i > 0) {
                 i--;
                 try {
-                    reports.get(i).onStatusChanged(which);
+                    reports.get(i).onStatusChanged(reportMasks[i]);
                 } catch (RemoteException e) {
                     // The remote callback list will take care of this for us.
                 }
@@ -470,25 +689,15 @@ public class SyncStorageEngine extends Handler {
     }
 
     public boolean getSyncAutomatically(Account account, int userId, String providerName) {
-        synchronized (mAuthorities) {
-            if (account != null) {
-                AuthorityInfo authority = getAuthorityLocked(account, userId, providerName,
-                        "getSyncAutomatically");
-                return authority != null && authority.enabled;
-            }
-
-            int i = mAuthorities.size();
-            while (i > 0) {
-                i--;
-                AuthorityInfo authority = mAuthorities.valueAt(i);
-                if (authority.authority.equals(providerName)
-                        && authority.userId == userId
-                        && authority.enabled) {
-                    return true;
-                }
-            }
-            return false;
+        final SettingsSnapshot snapshot = getSettingsSnapshot();
+        final AuthorityKey key = sReaderKey.get();
+        if (account != null) {
+            AuthorityInfo authority =
+                    snapshot.authorities.get(key.set(account, userId, providerName));
+            return authority != null && authority.enabled;
         }
+
+        return snapshot.enabledAnyAccount.containsKey(key.set(null, userId, providerName));
     }
 
     public void setSyncAutomatically(Account account, int userId, String providerName,
@@ -507,7 +716,8 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            invalidateSettingsLocked();
+            appendAuthorityToJournalLocked(authority);
         }
 
         if (sync) {
@@ -517,26 +727,18 @@ public class SyncStorageEngine extends Handler {
     }
 
     public int getIsSyncable(Account account, int userId, String providerName) {
-        synchronized (mAuthorities) {
-            if (account != null) {
-                AuthorityInfo authority = getAuthorityLocked(account, userId, providerName,
-                        "getIsSyncable");
-                if (authority == null) {
-                    return -1;
-                }
-                return authority.syncable;
-            }
-
-            int i = mAuthorities.size();
-            while (i > 0) {
-                i--;
-                AuthorityInfo authority = mAuthorities.valueAt(i);
-                if (authority.authority.equals(providerName)) {
-                    return authority.syncable;
-                }
+        final SettingsSnapshot snapshot = getSettingsSnapshot();
+        if (account != null) {
+            AuthorityInfo authority =
+                    snapshot.authorities.get(sReaderKey.get().set(account, userId, providerName));
+            if (authority == null) {
+                return -1;
             }
-            return -1;
+            return authority.syncable;
         }
+
+        Integer syncable = snapshot.syncableAnyAccount.get(providerName);
+        return syncable != null ? syncable : -1;
     }
 
     public void setIsSyncable(Account account, int userId, String providerName, int syncable) {
@@ -559,7 +761,8 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             authority.syncable = syncable;
-            writeAccountInfoLocked();
+            invalidateSettingsLocked();
+            appendAuthorityToJournalLocked(authority);
         }
 
         if (syncable > 0) {
@@ -700,8 +903,9 @@ public class SyncStorageEngine extends Handler {
                     + " -> period " + period + ", extras " + extras);
         }
         synchronized (mAuthorities) {
+            AuthorityInfo authority = null;
             try {
-                AuthorityInfo authority =
+                authority =
                         getOrCreateAuthorityLocked(account, userId, providerName, -1, false);
                 if (add) {
                     // add this periodic sync if one with the same extras doesn't already
@@ -729,6 +933,9 @@ public class SyncStorageEngine extends Handler {
                 } else {
                     // remove any periodic syncs that match the authority and extras
                     SyncStatusInfo status = mSyncStatus.get(authority.ident);
+                    if (status != null) {
+                        mDirtyStatus.put(authority.ident, true);
+                    }
                     boolean changed = false;
                     Iterator<Pair<Bundle, Long>> iterator = authority.periodicSyncs.iterator();
                     int i = 0;
@@ -751,7 +958,10 @@ public class SyncStorageEngine extends Handler {
                     }
                 }
             } finally {
-                writeAccountInfoLocked();
+                invalidateSettingsLocked();
+                if (authority != null) {
+                    appendAuthorityToJournalLocked(authority);
+                }
                 writeStatusLocked();
             }
         }
@@ -773,14 +983,12 @@ public class SyncStorageEngine extends Handler {
 
     public List<PeriodicSync> getPeriodicSyncs(Account account, int userId, String providerName) {
         ArrayList<PeriodicSync> syncs = new ArrayList<PeriodicSync>();
-        synchronized (mAuthorities) {
-            AuthorityInfo authority = getAuthorityLocked(account, userId, providerName,
-                    "getPeriodicSyncs");
-            if (authority != null) {
-                for (Pair<Bundle, Long> item : authority.periodicSyncs) {
-                    syncs.add(new PeriodicSync(account, providerName, item.first,
-                            item.second));
-                }
+        AuthorityInfo authority = getSettingsSnapshot().authorities.get(
+                sReaderKey.get().set(account, userId, providerName));
+        if (authority != null) {
+            for (Pair<Bundle, Long> item : authority.periodicSyncs) {
+                syncs.add(new PeriodicSync(account, providerName, item.first,
+                        item.second));
             }
         }
         return syncs;
@@ -793,7 +1001,8 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            invalidateSettingsLocked();
+            appendMasterSyncToJournalLocked(userId, flag);
         }
         if (flag) {
             requestSync(null, userId, null, new Bundle());
@@ -803,20 +1012,46 @@ public class SyncStorageEngine extends Handler {
     }
 
     public boolean getMasterSyncAutomatically(int userId) {
-        synchronized (mAuthorities) {
-            Boolean auto = mMasterSyncAutomatically.get(userId);
-            Log.d(TAG,"userId="+userId+" auto="+auto+" mExt="+mExt);
-            if(mExt != null && mExt.getCurrentOPIndex() == 1){
-                ///M: add for cmccc when there is no account default auto sync is off
-                Log.d(TAG,"mExt.getCurrentOPIndex()="+mExt.getCurrentOPIndex());
-                return auto == null ? false : auto;
-            } else {
-                //change by liang_huiyong
-                //return auto == null ? true : auto;
-                return auto == null ? false : auto;
+        Boolean auto = getSettingsSnapshot().masterSyncAutomatically.get(userId);
+        Log.d(TAG,"userId="+userId+" auto="+auto+" mExt="+mExt);
+        if(mExt != null && mExt.getCurrentOPIndex() == 1){
+            ///M: add for cmccc when there is no account default auto sync is off
+            Log.d(TAG,"mExt.getCurrentOPIndex()="+mExt.getCurrentOPIndex());
+            return auto == null ? false : auto;
+        } else {
+            //change by liang_huiyong
+            //return auto == null ? true : auto;
+            return auto == null ? false : auto;
+        }
+        //return auto == null ? mDefaultMasterSyncAutomatically : auto;
+    }
+
+    private SettingsSnapshot getSettingsSnapshot() {
+        SettingsSnapshot snapshot = mSettingsSnapshot;
+        if (snapshot == null) {
+            synchronized (mAuthorities) {
+                snapshot = updateSettingsSnapshotLocked();
             }
-            //return auto == null ? mDefaultMasterSyncAutomatically : auto;
         }
+        return snapshot;
+    }
+
+    /**
+     * Build a new settings snapshot if the settings changed since the last
+     * one.  Called before the long file writes too, so that readers arriving
+     * while one is in progress find a current snapshot.
+     */
+    private SettingsSnapshot updateSettingsSnapshotLocked() {
+        SettingsSnapshot snapshot = mSettingsSnapshot;
+        if (snapshot == null) {
+            snapshot = new SettingsSnapshot(mAuthorities, mMasterSyncAutomatically);
+            mSettingsSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private void invalidateSettingsLocked() {
+        mSettingsSnapshot = null;
     }
 
     public AuthorityInfo getOrCreateAuthority(Account account, int userId, String authority) {
@@ -878,7 +1113,9 @@ public class SyncStorageEngine extends Handler {
 
             op = new PendingOperation(op);
             op.authorityId = authority.ident;
-            mPendingOperations.add(op);
+            op.handle = mNextPendingHandle++;
+            mPendingOperations.put(op.handle, op);
+            mPendingCounts.put(op.authorityId, mPendingCounts.get(op.authorityId) + 1);
             appendPendingOperationLocked(op);
 
             SyncStatusInfo status = getOrCreateSyncStatusLocked(authority.ident);
@@ -899,32 +1136,27 @@ public class SyncStorageEngine extends Handler {
                     + " src=" + op.syncSource
                     + " extras=" + op.extras);
             }
-            if (mPendingOperations.remove(op)) {
+            if (op.handle >= 0 && mPendingOperations.get(op.handle) == op) {
+                mPendingOperations.remove(op.handle);
+                final int morePending = mPendingCounts.get(op.authorityId) - 1;
+                if (morePending > 0) {
+                    mPendingCounts.put(op.authorityId, morePending);
+                } else {
+                    mPendingCounts.delete(op.authorityId);
+                }
                 if (mPendingOperations.size() == 0
-                        || mNumPendingFinished >= PENDING_FINISH_TO_WRITE) {
+                        || mNumPendingTombstones >= Math.max(PENDING_FINISH_TO_WRITE,
+                                mPendingOperations.size())) {
                     writePendingOperationsLocked();
-                    mNumPendingFinished = 0;
                 } else {
-                    mNumPendingFinished++;
+                    appendPendingTombstoneLocked(op.handle);
                 }
 
                 AuthorityInfo authority = getAuthorityLocked(op.account, op.userId, op.authority,
                         "deleteFromPending");
                 if (authority != null) {
                     if (DEBUG) Log.v(TAG, "removing - " + authority);
-                    final int N = mPendingOperations.size();
-                    boolean morePending = false;
-                    for (int i=0; i<N; i++) {
-                        PendingOperation cur = mPendingOperations.get(i);
-                        if (cur.account.equals(op.account)
-                                && cur.authority.equals(op.authority)
-                                && cur.userId == op.userId) {
-                            morePending = true;
-                            break;
-                        }
-                    }
-
-                    if (!morePending) {
+                    if (morePending <= 0) {
                         if (DEBUG) Log.v(TAG, "no more pending!");
                         SyncStatusInfo status = getOrCreateSyncStatusLocked(authority.ident);
                         status.pending = false;
@@ -946,7 +1178,7 @@ public class SyncStorageEngine extends Handler {
      */
     public ArrayList<PendingOperation> getPendingOperations() {
         synchronized (mAuthorities) {
-            return new ArrayList<PendingOperation>(mPendingOperations);
+            return new ArrayList<PendingOperation>(mPendingOperations.values());
         }
     }
 
@@ -989,21 +1221,20 @@ public class SyncStorageEngine extends Handler {
                 while (i > 0) {
                     i--;
                     int ident = removing.keyAt(i);
+                    AuthorityInfo auth = removing.valueAt(i);
                     mAuthorities.remove(ident);
+                    mAuthorityIndex.remove(mLookupKey.set(auth.account, auth.userId,
+                            auth.authority));
+                    invalidateSettingsLocked();
                     int j = mSyncStatus.size();
                     while (j > 0) {
                         j--;
                         if (mSyncStatus.keyAt(j) == ident) {
                             mSyncStatus.remove(mSyncStatus.keyAt(j));
+                            mStatusCheckpointNeeded = true;
                         }
                     }
-                    j = mSyncHistory.size();
-                    while (j > 0) {
-                        j--;
-                        if (mSyncHistory.get(j).authorityId == ident) {
-                            mSyncHistory.remove(j);
-                        }
-                    }
+                    removeSyncHistoryLocked(ident);
                 }
                 writeAccountInfoLocked();
                 writeStatusLocked();
@@ -1082,19 +1313,24 @@ public class SyncStorageEngine extends Handler {
             if (authority == null) {
                 return -1;
             }
-            SyncHistoryItem item = new SyncHistoryItem();
-            item.initialization = initialization;
-            item.authorityId = authority.ident;
-            item.historyId = mNextHistoryId++;
+            // Reuse the slot of the oldest event.
+            final int h = (mHistoryHead + MAX_HISTORY - 1) % MAX_HISTORY;
+            mHistoryHead = h;
+            if (mHistorySize < MAX_HISTORY) {
+                mHistorySize++;
+            }
+            mHistoryInitialization[h] = initialization;
+            mHistoryAuthorityId[h] = authority.ident;
+            mHistoryId[h] = mNextHistoryId++;
             if (mNextHistoryId < 0) mNextHistoryId = 0;
-            item.eventTime = now;
-            item.source = source;
-            item.event = EVENT_START;
-            mSyncHistory.add(0, item);
-            while (mSyncHistory.size() > MAX_HISTORY) {
-                mSyncHistory.remove(mSyncHistory.size()-1);
-            }
-            id = item.historyId;
+            mHistoryEventTime[h] = now;
+            mHistoryElapsedTime[h] = 0;
+            mHistorySource[h] = source;
+            mHistoryEvent[h] = EVENT_START;
+            mHistoryUpstreamActivity[h] = 0;
+            mHistoryDownstreamActivity[h] = 0;
+            mHistoryMesg[h] = null;
+            id = mHistoryId[h];
             if (DEBUG) Log.v(TAG, "returning historyId " + id);
         }
 
@@ -1126,33 +1362,24 @@ public class SyncStorageEngine extends Handler {
             if (DEBUG) {
                 Log.v(TAG, "stopSyncEvent: historyId=" + historyId);
             }
-            SyncHistoryItem item = null;
-            int i = mSyncHistory.size();
-            while (i > 0) {
-                i--;
-                item = mSyncHistory.get(i);
-                if (item.historyId == historyId) {
-                    break;
-                }
-                item = null;
-            }
-
-            if (item == null) {
+            final int h = findSyncHistoryLocked(historyId);
+            if (h < 0) {
                 Log.w(TAG, "stopSyncEvent: no history for id " + historyId);
                 return;
             }
 
-            item.elapsedTime = elapsedTime;
-            item.event = EVENT_STOP;
-            item.mesg = resultMessage;
-            item.downstreamActivity = downstreamActivity;
-            item.upstreamActivity = upstreamActivity;
+            mHistoryElapsedTime[h] = elapsedTime;
+            mHistoryEvent[h] = EVENT_STOP;
+            mHistoryMesg[h] = resultMessage;
+            mHistoryDownstreamActivity[h] = downstreamActivity;
+            mHistoryUpstreamActivity[h] = upstreamActivity;
+            final int itemSource = mHistorySource[h];
 
-            SyncStatusInfo status = getOrCreateSyncStatusLocked(item.authorityId);
+            SyncStatusInfo status = getOrCreateSyncStatusLocked(mHistoryAuthorityId[h]);
 
             status.numSyncs++;
             status.totalElapsedTime += elapsedTime;
-            switch (item.source) {
+            switch (itemSource) {
                 case SOURCE_LOCAL:
                     status.numSourceLocal++;
                     break;
@@ -1172,17 +1399,15 @@ public class SyncStorageEngine extends Handler {
 
             boolean writeStatisticsNow = false;
             int day = getCurrentDayLocked();
-            if (mDayStats[0] == null) {
-                mDayStats[0] = new DayStats(day);
-            } else if (day != mDayStats[0].day) {
-                System.arraycopy(mDayStats, 0, mDayStats, 1, mDayStats.length-1);
-                mDayStats[0] = new DayStats(day);
+            if (mDayStatsSize == 0) {
+                startDayStatsLocked(day);
+            } else if (day != mDayStatsDay[mDayStatsHead]) {
+                startDayStatsLocked(day);
                 writeStatisticsNow = true;
-            } else if (mDayStats[0] == null) {
             }
-            final DayStats ds = mDayStats[0];
+            final int ds = mDayStatsHead;
 
-            final long lastSyncTime = (item.eventTime + elapsedTime);
+            final long lastSyncTime = (mHistoryEventTime[h] + elapsedTime);
             boolean writeStatusNow = false;
             if (MESG_SUCCESS.equals(resultMessage)) {
                 // - if successful, update the successful columns
@@ -1190,25 +1415,25 @@ public class SyncStorageEngine extends Handler {
                     writeStatusNow = true;
                 }
                 status.lastSuccessTime = lastSyncTime;
-                status.lastSuccessSource = item.source;
+                status.lastSuccessSource = itemSource;
                 status.lastFailureTime = 0;
                 status.lastFailureSource = -1;
                 status.lastFailureMesg = null;
                 status.initialFailureTime = 0;
-                ds.successCount++;
-                ds.successTime += elapsedTime;
+                mDayStatsSuccessCount[ds]++;
+                mDayStatsSuccessTime[ds] += elapsedTime;
             } else if (!MESG_CANCELED.equals(resultMessage)) {
                 if (status.lastFailureTime == 0) {
                     writeStatusNow = true;
                 }
                 status.lastFailureTime = lastSyncTime;
-                status.lastFailureSource = item.source;
+                status.lastFailureSource = itemSource;
                 status.lastFailureMesg = resultMessage;
                 if (status.initialFailureTime == 0) {
                     status.initialFailureTime = lastSyncTime;
                 }
-                ds.failureCount++;
-                ds.failureTime += elapsedTime;
+                mDayStatsFailureCount[ds]++;
+                mDayStatsFailureTime[ds] += elapsedTime;
             }
 
             if (writeStatusNow) {
@@ -1331,44 +1556,128 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Return an array of the current sync status for all authorities.  Note
-     * that the objects inside the array are the real, live status objects,
-     * so be careful what you do with them.
+     * Return a copy of the recent sync history, newest first.  The items
+     * are snapshots; the history itself is kept in recycled columns.
      */
     public ArrayList<SyncHistoryItem> getSyncHistory() {
         synchronized (mAuthorities) {
-            final int N = mSyncHistory.size();
+            final int N = mHistorySize;
             ArrayList<SyncHistoryItem> items = new ArrayList<SyncHistoryItem>(N);
             for (int i=0; i<N; i++) {
-                items.add(mSyncHistory.get(i));
+                final int h = (mHistoryHead + i) % MAX_HISTORY;
+                SyncHistoryItem item = new SyncHistoryItem();
+                item.authorityId = mHistoryAuthorityId[h];
+                item.historyId = mHistoryId[h];
+                item.eventTime = mHistoryEventTime[h];
+                item.elapsedTime = mHistoryElapsedTime[h];
+                item.source = mHistorySource[h];
+                item.event = mHistoryEvent[h];
+                item.upstreamActivity = mHistoryUpstreamActivity[h];
+                item.downstreamActivity = mHistoryDownstreamActivity[h];
+                item.mesg = mHistoryMesg[h];
+                item.initialization = mHistoryInitialization[h];
+                items.add(item);
             }
             return items;
         }
     }
 
     /**
-     * Return an array of the current per-day statistics.  Note
-     * that the objects inside the array are the real, live status objects,
-     * so be careful what you do with them.
+     * Return the slot of the history entry with the given id, or -1.  Ids
+     * are handed out in sequence, so the slot is normally found directly
+     * from the distance to the newest entry.
+     */
+    private int findSyncHistoryLocked(long historyId) {
+        if (mHistorySize == 0) {
+            return -1;
+        }
+        final long age = mHistoryId[mHistoryHead] - historyId;
+        if (age >= 0 && age < mHistorySize) {
+            final int h = (int) ((mHistoryHead + age) % MAX_HISTORY);
+            if (mHistoryId[h] == historyId) {
+                return h;
+            }
+        }
+        // The ids wrapped around or entries were removed; search, oldest first.
+        for (int i = mHistorySize - 1; i >= 0; i--) {
+            final int h = (mHistoryHead + i) % MAX_HISTORY;
+            if (mHistoryId[h] == historyId) {
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drop the history entries of the given authority, keeping the order
+     * of the others.
+     */
+    private void removeSyncHistoryLocked(int authorityId) {
+        int kept = 0;
+        for (int i = 0; i < mHistorySize; i++) {
+            final int from = (mHistoryHead + i) % MAX_HISTORY;
+            if (mHistoryAuthorityId[from] == authorityId) {
+                continue;
+            }
+            final int to = (mHistoryHead + kept) % MAX_HISTORY;
+            if (to != from) {
+                mHistoryAuthorityId[to] = mHistoryAuthorityId[from];
+                mHistoryId[to] = mHistoryId[from];
+                mHistoryEventTime[to] = mHistoryEventTime[from];
+                mHistoryElapsedTime[to] = mHistoryElapsedTime[from];
+                mHistorySource[to] = mHistorySource[from];
+                mHistoryEvent[to] = mHistoryEvent[from];
+                mHistoryUpstreamActivity[to] = mHistoryUpstreamActivity[from];
+                mHistoryDownstreamActivity[to] = mHistoryDownstreamActivity[from];
+                mHistoryMesg[to] = mHistoryMesg[from];
+                mHistoryInitialization[to] = mHistoryInitialization[from];
+            }
+            kept++;
+        }
+        for (int i = kept; i < mHistorySize; i++) {
+            mHistoryMesg[(mHistoryHead + i) % MAX_HISTORY] = null;
+        }
+        mHistorySize = kept;
+    }
+
+    /**
+     * Return a copy of the current per-day statistics, newest first.
      */
     public DayStats[] getDayStatistics() {
         synchronized (mAuthorities) {
-            DayStats[] ds = new DayStats[mDayStats.length];
-            System.arraycopy(mDayStats, 0, ds, 0, ds.length);
+            DayStats[] ds = new DayStats[DAY_STATS_COUNT];
+            for (int i = 0; i < mDayStatsSize; i++) {
+                final int d = (mDayStatsHead + i) % DAY_STATS_COUNT;
+                ds[i] = new DayStats(mDayStatsDay[d]);
+                ds[i].successCount = mDayStatsSuccessCount[d];
+                ds[i].successTime = mDayStatsSuccessTime[d];
+                ds[i].failureCount = mDayStatsFailureCount[d];
+                ds[i].failureTime = mDayStatsFailureTime[d];
+            }
             return ds;
         }
     }
 
-    private int getCurrentDayLocked() {
-        mCal.setTimeInMillis(System.currentTimeMillis());
-        final int dayOfYear = mCal.get(Calendar.DAY_OF_YEAR);
-        if (mYear != mCal.get(Calendar.YEAR)) {
-            mYear = mCal.get(Calendar.YEAR);
-            mCal.clear();
-            mCal.set(Calendar.YEAR, mYear);
-            mYearInDays = (int)(mCal.getTimeInMillis()/86400000);
+    /**
+     * Start the stats of a new day in the slot of the oldest one.
+     */
+    private void startDayStatsLocked(int day) {
+        final int d = (mDayStatsHead + DAY_STATS_COUNT - 1) % DAY_STATS_COUNT;
+        mDayStatsHead = d;
+        if (mDayStatsSize < DAY_STATS_COUNT) {
+            mDayStatsSize++;
         }
-        return dayOfYear + mYearInDays;
+        mDayStatsDay[d] = day;
+        mDayStatsSuccessCount[d] = 0;
+        mDayStatsSuccessTime[d] = 0;
+        mDayStatsFailureCount[d] = 0;
+        mDayStatsFailureTime[d] = 0;
+    }
+
+    private int getCurrentDayLocked() {
+        // Days are counted in GMT, from 1 on the first day of the epoch; this
+        // is the day of the year plus the epoch day of that year's January 1st.
+        return (int) (System.currentTimeMillis() / 86400000) + 1;
     }
 
     /**
@@ -1381,21 +1690,13 @@ public class SyncStorageEngine extends Handler {
      */
     private AuthorityInfo getAuthorityLocked(Account accountName, int userId, String authorityName,
             String tag) {
-        AccountAndUser au = new AccountAndUser(accountName, userId);
-        AccountInfo accountInfo = mAccounts.get(au);
-        if (accountInfo == null) {
-            if (tag != null) {
-                if (DEBUG) {
-                    Log.v(TAG, tag + ": unknown account " + au);
-                }
-            }
-            return null;
-        }
-        AuthorityInfo authority = accountInfo.authorities.get(authorityName);
+        AuthorityInfo authority = mAuthorityIndex.get(
+                mLookupKey.set(accountName, userId, authorityName));
         if (authority == null) {
             if (tag != null) {
                 if (DEBUG) {
-                    Log.v(TAG, tag + ": unknown authority " + authorityName);
+                    Log.v(TAG, tag + ": unknown authority " + authorityName
+                            + " for account " + accountName + " u" + userId);
                 }
             }
             return null;
@@ -1406,13 +1707,18 @@ public class SyncStorageEngine extends Handler {
 
     private AuthorityInfo getOrCreateAuthorityLocked(Account accountName, int userId,
             String authorityName, int ident, boolean doWrite) {
+        AuthorityInfo authority = mAuthorityIndex.get(
+                mLookupKey.set(accountName, userId, authorityName));
+        if (authority != null) {
+            return authority;
+        }
         AccountAndUser au = new AccountAndUser(accountName, userId);
         AccountInfo account = mAccounts.get(au);
         if (account == null) {
             account = new AccountInfo(au);
             mAccounts.put(au, account);
         }
-        AuthorityInfo authority = account.authorities.get(authorityName);
+        authority = account.authorities.get(authorityName);
         if (authority == null) {
             if (ident < 0) {
                 ident = mNextAuthorityId;
@@ -1427,8 +1733,11 @@ public class SyncStorageEngine extends Handler {
             authority = new AuthorityInfo(accountName, userId, authorityName, ident);
             account.authorities.put(authorityName, authority);
             mAuthorities.put(ident, authority);
+            mAuthorityIndex.put(new AuthorityKey().set(accountName, userId, authorityName),
+                    authority);
+            invalidateSettingsLocked();
             if (doWrite) {
-                writeAccountInfoLocked();
+                appendAuthorityToJournalLocked(authority);
             }
         }
 
@@ -1442,8 +1751,10 @@ public class SyncStorageEngine extends Handler {
             final AuthorityInfo authorityInfo = accountInfo.authorities.remove(authorityName);
             if (authorityInfo != null) {
                 mAuthorities.remove(authorityInfo.ident);
+                mAuthorityIndex.remove(mLookupKey.set(account, userId, authorityName));
+                invalidateSettingsLocked();
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    appendAuthorityRemovalToJournalLocked(authorityInfo.ident);
                 }
             }
         }
@@ -1461,17 +1772,14 @@ public class SyncStorageEngine extends Handler {
             status = new SyncStatusInfo(authorityId);
             mSyncStatus.put(authorityId, status);
         }
+        // Callers get the status in order to change it, so it needs writing.
+        mDirtyStatus.put(authorityId, true);
         return status;
     }
 
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
-
-            if (mNumPendingFinished > 0) {
-                // Only write these if they are out of date.
-                writePendingOperationsLocked();
-            }
+            // Account info and pending ops are always written so no need to do it here.
 
             // Just always write these...  they are likely out of date.
             writeStatusLocked();
@@ -1486,15 +1794,28 @@ public class SyncStorageEngine extends Handler {
         synchronized (mAuthorities) {
             mAuthorities.clear();
             mAccounts.clear();
+            mAuthorityIndex.clear();
             mPendingOperations.clear();
+            mPendingCounts.clear();
+            mNextPendingHandle = 0;
+            mNumPendingTombstones = 0;
             mSyncStatus.clear();
-            mSyncHistory.clear();
+            mDirtyStatus.clear();
+            mStatusCheckpointNeeded = true;
+            for (int i = 0; i < MAX_HISTORY; i++) {
+                mHistoryMesg[i] = null;
+            }
+            mHistoryHead = 0;
+            mHistorySize = 0;
 
             readAccountInfoLocked();
+            readAccountJournalLocked();
             readStatusLocked();
+            readStatusDeltaLocked();
             readPendingOperationsLocked();
             readStatisticsLocked();
             readAndDeleteLegacyAccountInfoLocked();
+            invalidateSettingsLocked();
             writeAccountInfoLocked();
             writeStatusLocked();
             writePendingOperationsLocked();
@@ -1534,6 +1855,14 @@ public class SyncStorageEngine extends Handler {
                 } catch (NumberFormatException e) {
                     // don't care
                 }
+                String generationString =
+                        parser.getAttributeValue(null, XML_ATTR_JOURNAL_GENERATION);
+                try {
+                    mAccountJournalGeneration =
+                            (generationString == null) ? 0 : Integer.parseInt(generationString);
+                } catch (NumberFormatException e) {
+                    mAccountJournalGeneration = 0;
+                }
                 String offsetString = parser.getAttributeValue(null, XML_ATTR_SYNC_RANDOM_OFFSET);
                 try {
                     mSyncRandomOffset = (offsetString == null) ? 0 : Integer.parseInt(offsetString);
@@ -1768,12 +2097,18 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Write all account information to the account file.
+     * Write all account information to the account file, and drop the
+     * journal records it now contains.
      */
     private void writeAccountInfoLocked() {
         if (DEBUG_FILE) Log.v(TAG, "Writing new " + mAccountInfoFile.getBaseFile());
+        updateSettingsSnapshotLocked();
         FileOutputStream fos = null;
 
+        // Records of the current journal no longer apply once the new xml
+        // file is in place, even if we die before the journal is truncated.
+        final int generation = mAccountJournalGeneration + 1;
+
         try {
             fos = mAccountInfoFile.startWrite();
             XmlSerializer out = new FastXmlSerializer();
@@ -1785,6 +2120,7 @@ public class SyncStorageEngine extends Handler {
             out.attribute(null, "version", Integer.toString(ACCOUNTS_VERSION));
             out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID, Integer.toString(mNextAuthorityId));
             out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET, Integer.toString(mSyncRandomOffset));
+            out.attribute(null, XML_ATTR_JOURNAL_GENERATION, Integer.toString(generation));
 
             // Write the Sync Automatically flags for each user
             final int M = mMasterSyncAutomatically.size();
@@ -1860,6 +2196,206 @@ public class SyncStorageEngine extends Handler {
             if (fos != null) {
                 mAccountInfoFile.failWrite(fos);
             }
+            return;
+        }
+
+        mAccountJournalGeneration = generation;
+        mAccountJournalRecords = 0;
+        try {
+            if (DEBUG_FILE) Log.v(TAG, "Truncating " + mAccountJournalFile.getBaseFile());
+            mAccountJournalFile.truncate();
+        } catch (java.io.IOException e) {
+            Log.w(TAG, "Error truncating accounts journal", e);
+        }
+    }
+
+    /**
+     * Replay the account changes journaled since accounts.xml was written on
+     * top of the state read from it.  Records from an older generation of
+     * accounts.xml, and anything after a torn record, are ignored.
+     */
+    private void readAccountJournalLocked() {
+        if (DEBUG_FILE) Log.v(TAG, "Reading " + mAccountJournalFile.getBaseFile());
+        byte[] data;
+        try {
+            data = mAccountJournalFile.readFully();
+        } catch (java.io.IOException e) {
+            Log.i(TAG, "No accounts journal");
+            return;
+        }
+        if (data.length == 0) {
+            return;
+        }
+
+        Parcel in = Parcel.obtain();
+        try {
+            in.unmarshall(data, 0, data.length);
+            in.setDataPosition(0);
+            if (in.readInt() != ACCOUNTS_JOURNAL_HEADER
+                    || in.readInt() != ACCOUNTS_JOURNAL_VERSION
+                    || in.readInt() != mAccountJournalGeneration
+                    || in.readInt() != (ACCOUNTS_JOURNAL_HEADER ^ ACCOUNTS_JOURNAL_RECORD_CHECK)) {
+                Log.w(TAG, "Stale or unknown accounts journal; ignoring it");
+                return;
+            }
+            final int SIZE = in.dataSize();
+            int records = 0;
+            while (in.dataPosition() < SIZE) {
+                final int token = in.readInt();
+                if (token == ACCOUNTS_JOURNAL_AUTHORITY) {
+                    final int ident = in.readInt();
+                    final String accountName = in.readString();
+                    final String accountType = in.readString();
+                    final int userId = in.readInt();
+                    final String authorityName = in.readString();
+                    final boolean enabled = in.readInt() != 0;
+                    final int syncable = in.readInt();
+                    final int N = in.readInt();
+                    ArrayList<Pair<Bundle, Long>> periodicSyncs =
+                            new ArrayList<Pair<Bundle, Long>>(Math.max(N, 0));
+                    for (int i = 0; i < N; i++) {
+                        final long period = in.readLong();
+                        final byte[] flatExtras = in.createByteArray();
+                        periodicSyncs.add(Pair.create(flatExtras != null
+                                ? unflattenBundle(flatExtras) : new Bundle(), period));
+                    }
+                    if (in.readInt() != (token ^ ACCOUNTS_JOURNAL_RECORD_CHECK)
+                            || accountName == null || accountType == null
+                            || authorityName == null) {
+                        Log.w(TAG, "Torn accounts journal record; dropping the rest");
+                        break;
+                    }
+                    AuthorityInfo authority = mAuthorities.get(ident);
+                    if (authority == null) {
+                        authority = getOrCreateAuthorityLocked(
+                                new Account(accountName, accountType), userId, authorityName,
+                                ident, false /* doWrite */);
+                    }
+                    authority.enabled = enabled;
+                    authority.syncable = syncable;
+                    authority.periodicSyncs.clear();
+                    authority.periodicSyncs.addAll(periodicSyncs);
+                    mNextAuthorityId = Math.max(mNextAuthorityId, ident + 1);
+                } else if (token == ACCOUNTS_JOURNAL_REMOVE_AUTHORITY) {
+                    final int ident = in.readInt();
+                    if (in.readInt() != (token ^ ACCOUNTS_JOURNAL_RECORD_CHECK)) {
+                        Log.w(TAG, "Torn accounts journal record; dropping the rest");
+                        break;
+                    }
+                    AuthorityInfo authority = mAuthorities.get(ident);
+                    if (authority != null) {
+                        removeAuthorityLocked(authority.account, authority.userId,
+                                authority.authority, false /* doWrite */);
+                    }
+                } else if (token == ACCOUNTS_JOURNAL_MASTER_SYNC) {
+                    final int userId = in.readInt();
+                    final boolean flag = in.readInt() != 0;
+                    if (in.readInt() != (token ^ ACCOUNTS_JOURNAL_RECORD_CHECK)) {
+                        Log.w(TAG, "Torn accounts journal record; dropping the rest");
+                        break;
+                    }
+                    mMasterSyncAutomatically.put(userId, flag);
+                } else {
+                    // Ooops.
+                    Log.w(TAG, "Unknown accounts journal token: " + token);
+                    break;
+                }
+                records++;
+            }
+            mAccountJournalRecords = records;
+            if (DEBUG_FILE) Log.v(TAG, "Replayed " + records + " accounts journal records");
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error reading accounts journal", e);
+        } finally {
+            in.recycle();
+        }
+    }
+
+    private void appendAuthorityToJournalLocked(AuthorityInfo authority) {
+        Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_AUTHORITY);
+        out.writeInt(authority.ident);
+        out.writeString(authority.account.name);
+        out.writeString(authority.account.type);
+        out.writeInt(authority.userId);
+        out.writeString(authority.authority);
+        out.writeInt(authority.enabled ? 1 : 0);
+        out.writeInt(authority.syncable);
+        final int N = authority.periodicSyncs.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            Pair<Bundle, Long> periodicSync = authority.periodicSyncs.get(i);
+            out.writeLong(periodicSync.second);
+            out.writeByteArray(flattenBundle(periodicSync.first));
+        }
+        out.writeInt(ACCOUNTS_JOURNAL_AUTHORITY ^ ACCOUNTS_JOURNAL_RECORD_CHECK);
+        appendAccountJournalRecordLocked(out);
+    }
+
+    private void appendAuthorityRemovalToJournalLocked(int ident) {
+        Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_REMOVE_AUTHORITY);
+        out.writeInt(ident);
+        out.writeInt(ACCOUNTS_JOURNAL_REMOVE_AUTHORITY ^ ACCOUNTS_JOURNAL_RECORD_CHECK);
+        appendAccountJournalRecordLocked(out);
+    }
+
+    private void appendMasterSyncToJournalLocked(int userId, boolean flag) {
+        Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_MASTER_SYNC);
+        out.writeInt(userId);
+        out.writeInt(flag ? 1 : 0);
+        out.writeInt(ACCOUNTS_JOURNAL_MASTER_SYNC ^ ACCOUNTS_JOURNAL_RECORD_CHECK);
+        appendAccountJournalRecordLocked(out);
+    }
+
+    /**
+     * Append the given record to the accounts journal and recycle it; if
+     * unable to, or if the journal has grown too long, write the full
+     * accounts file instead.
+     */
+    private void appendAccountJournalRecordLocked(Parcel record) {
+        if (mAccountJournalRecords >= ACCOUNTS_JOURNAL_COMPACT_THRESHOLD) {
+            record.recycle();
+            if (DEBUG_FILE) Log.v(TAG, "Compacting " + mAccountJournalFile.getBaseFile());
+            writeAccountInfoLocked();
+            return;
+        }
+
+        if (DEBUG_FILE) Log.v(TAG, "Appending to " + mAccountJournalFile.getBaseFile());
+        FileOutputStream fos = null;
+        try {
+            fos = mAccountJournalFile.openAppend();
+        } catch (java.io.IOException e) {
+            record.recycle();
+            if (DEBUG_FILE) Log.v(TAG, "Failed append; writing full accounts file");
+            writeAccountInfoLocked();
+            return;
+        }
+
+        Parcel out = Parcel.obtain();
+        try {
+            if (mAccountJournalRecords == 0) {
+                // A fresh journal starts with the generation of the accounts
+                // file it applies to.
+                out.writeInt(ACCOUNTS_JOURNAL_HEADER);
+                out.writeInt(ACCOUNTS_JOURNAL_VERSION);
+                out.writeInt(mAccountJournalGeneration);
+                out.writeInt(ACCOUNTS_JOURNAL_HEADER ^ ACCOUNTS_JOURNAL_RECORD_CHECK);
+            }
+            out.appendFrom(record, 0, record.dataSize());
+            fos.write(out.marshall());
+            mAccountJournalRecords++;
+        } catch (java.io.IOException e1) {
+            Log.w(TAG, "Error appending to accounts journal", e1);
+            writeAccountInfoLocked();
+        } finally {
+            out.recycle();
+            record.recycle();
+            try {
+                fos.close();
+            } catch (java.io.IOException e2) {
+            }
         }
     }
 
@@ -2000,6 +2536,10 @@ public class SyncStorageEngine extends Handler {
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
 
+    private static final int STATUS_DELTA_HEADER = 200;
+    // every delta record ends with its token xor'ed with this, so a torn tail can be detected
+    private static final int STATUS_DELTA_RECORD_CHECK = 0x53544443;
+
     /**
      * Read all sync status back in to the initial engine state.
      */
@@ -2026,21 +2566,150 @@ public class SyncStorageEngine extends Handler {
                     break;
                 }
             }
+            // The generation follows the end marker, where older readers
+            // don't look for it.
+            mStatusGeneration = in.dataPosition() < in.dataSize() ? in.readInt() : 0;
         } catch (java.io.IOException e) {
             Log.i(TAG, "No initial status");
         }
     }
 
     /**
-     * Write all sync status to the sync status file.
+     * Read the status records changed since status.bin was written, on top
+     * of the ones read from it.  A delta file from an older generation of
+     * status.bin, and anything after a torn record, are ignored.
+     */
+    private void readStatusDeltaLocked() {
+        if (DEBUG_FILE) Log.v(TAG, "Reading " + mStatusDeltaFile.getBaseFile());
+        byte[] data;
+        try {
+            data = mStatusDeltaFile.readFully();
+        } catch (java.io.IOException e) {
+            Log.i(TAG, "No status delta");
+            return;
+        }
+        if (data.length == 0) {
+            return;
+        }
+
+        Parcel in = Parcel.obtain();
+        try {
+            in.unmarshall(data, 0, data.length);
+            in.setDataPosition(0);
+            if (in.readInt() != STATUS_DELTA_HEADER
+                    || in.readInt() != mStatusGeneration) {
+                Log.w(TAG, "Stale or unknown status delta; ignoring it");
+                return;
+            }
+            final int SIZE = in.dataSize();
+            int records = 0;
+            while (in.dataPosition() < SIZE) {
+                int token = in.readInt();
+                if (token != STATUS_FILE_ITEM) {
+                    // Ooops.
+                    Log.w(TAG, "Unknown status delta token: " + token);
+                    break;
+                }
+                SyncStatusInfo status = new SyncStatusInfo(in);
+                if (in.readInt() != (token ^ STATUS_DELTA_RECORD_CHECK)) {
+                    Log.w(TAG, "Torn status delta record; dropping the rest");
+                    break;
+                }
+                if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                    status.pending = false;
+                    if (DEBUG_FILE) Log.v(TAG, "Updating status for id "
+                            + status.authorityId);
+                    mSyncStatus.put(status.authorityId, status);
+                }
+                records++;
+            }
+            mStatusDeltaRecords = records;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error reading status delta", e);
+        } finally {
+            in.recycle();
+        }
+    }
+
+    /**
+     * Write the sync status changed since the last write.  Only the changed
+     * records are appended to the status delta file, unless a full rewrite
+     * of the sync status file is due.
      */
     private void writeStatusLocked() {
-        if (DEBUG_FILE) Log.v(TAG, "Writing new " + mStatusFile.getBaseFile());
+        updateSettingsSnapshotLocked();
 
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATUS);
 
+        if (mStatusCheckpointNeeded
+                || mStatusDeltaRecords + mDirtyStatus.size() > STATUS_DELTA_CHECKPOINT_THRESHOLD) {
+            writeStatusCheckpointLocked();
+        } else if (mDirtyStatus.size() > 0) {
+            appendStatusDeltaLocked();
+        }
+    }
+
+    /**
+     * Append the changed sync status records to the status delta file; if
+     * unable to, write all sync status.
+     */
+    private void appendStatusDeltaLocked() {
+        if (DEBUG_FILE) Log.v(TAG, "Appending to " + mStatusDeltaFile.getBaseFile());
+        FileOutputStream fos = null;
+        try {
+            fos = mStatusDeltaFile.openAppend();
+        } catch (java.io.IOException e) {
+            if (DEBUG_FILE) Log.v(TAG, "Failed append; writing full file");
+            writeStatusCheckpointLocked();
+            return;
+        }
+
+        Parcel out = Parcel.obtain();
+        try {
+            if (mStatusDeltaRecords == 0) {
+                out.writeInt(STATUS_DELTA_HEADER);
+                out.writeInt(mStatusGeneration);
+            }
+            int records = 0;
+            final int N = mDirtyStatus.size();
+            for (int i = 0; i < N; i++) {
+                SyncStatusInfo status = mSyncStatus.get(mDirtyStatus.keyAt(i));
+                if (status == null) {
+                    continue;
+                }
+                out.writeInt(STATUS_FILE_ITEM);
+                status.writeToParcel(out, 0);
+                out.writeInt(STATUS_FILE_ITEM ^ STATUS_DELTA_RECORD_CHECK);
+                records++;
+            }
+            fos.write(out.marshall());
+            mStatusDeltaRecords += records;
+            mDirtyStatus.clear();
+        } catch (java.io.IOException e1) {
+            Log.w(TAG, "Error appending status delta", e1);
+            writeStatusCheckpointLocked();
+        } finally {
+            out.recycle();
+            try {
+                fos.close();
+            } catch (java.io.IOException e2) {
+            }
+        }
+    }
+
+    /**
+     * Write all sync status to the sync status file, and drop the status
+     * delta file it now contains.
+     */
+    private void writeStatusCheckpointLocked() {
+        if (DEBUG_FILE) Log.v(TAG, "Writing new " + mStatusFile.getBaseFile());
+
+        // Records of the current delta file no longer apply once the new
+        // status file is in place, even if we die before it is truncated.
+        final int generation = mStatusGeneration + 1;
+
         FileOutputStream fos = null;
         try {
             fos = mStatusFile.startWrite();
@@ -2052,6 +2721,7 @@ public class SyncStorageEngine extends Handler {
                 status.writeToParcel(out, 0);
             }
             out.writeInt(STATUS_FILE_END);
+            out.writeInt(generation);
             fos.write(out.marshall());
             out.recycle();
 
@@ -2061,11 +2731,26 @@ public class SyncStorageEngine extends Handler {
             if (fos != null) {
                 mStatusFile.failWrite(fos);
             }
+            return;
+        }
+
+        mStatusGeneration = generation;
+        mStatusCheckpointNeeded = false;
+        mStatusDeltaRecords = 0;
+        mDirtyStatus.clear();
+        try {
+            if (DEBUG_FILE) Log.v(TAG, "Truncating " + mStatusDeltaFile.getBaseFile());
+            mStatusDeltaFile.truncate();
+        } catch (java.io.IOException e) {
+            Log.w(TAG, "Error truncating status delta", e);
         }
     }
 
     public static final int PENDING_OPERATION_VERSION = 2;
 
+    // Record marking the op stored at the given ordinal of the pending ops file as deleted.
+    private static final int PENDING_OPERATION_TOMBSTONE = -1;
+
     /**
      * Read all pending operations back in to the initial engine state.
      */
@@ -2077,8 +2762,22 @@ public class SyncStorageEngine extends Handler {
             in.unmarshall(data, 0, data.length);
             in.setDataPosition(0);
             final int SIZE = in.dataSize();
+            int ordinal = 0;
             while (in.dataPosition() < SIZE) {
                 int version = in.readInt();
+                if (version == PENDING_OPERATION_TOMBSTONE) {
+                    PendingOperation op = mPendingOperations.remove(in.readInt());
+                    if (op != null) {
+                        final int count = mPendingCounts.get(op.authorityId) - 1;
+                        if (count > 0) {
+                            mPendingCounts.put(op.authorityId, count);
+                        } else {
+                            mPendingCounts.delete(op.authorityId);
+                        }
+                    }
+                    mNumPendingTombstones++;
+                    continue;
+                }
                 if (version != PENDING_OPERATION_VERSION && version != 1) {
                     Log.w(TAG, "Unknown pending operation version "
                             + version + "; dropping all ops");
@@ -2093,6 +2792,10 @@ public class SyncStorageEngine extends Handler {
                 } else {
                     expedited = false;
                 }
+                // Every op record takes an ordinal, even if it is dropped, so
+                // that tombstones line up with the records they name.
+                final int handle = ordinal++;
+                mNextPendingHandle = ordinal;
                 AuthorityInfo authority = mAuthorities.get(authorityId);
                 if (authority != null) {
                     Bundle extras;
@@ -2108,12 +2811,14 @@ public class SyncStorageEngine extends Handler {
                             authority.authority, extras, expedited);
                     op.authorityId = authorityId;
                     op.flatExtras = flatExtras;
+                    op.handle = handle;
                     if (DEBUG_FILE) Log.v(TAG, "Adding pending op: account=" + op.account
                             + " auth=" + op.authority
                             + " src=" + op.syncSource
                             + " expedited=" + op.expedited
                             + " extras=" + op.extras);
-                    mPendingOperations.add(op);
+                    mPendingOperations.put(handle, op);
+                    mPendingCounts.put(authorityId, mPendingCounts.get(authorityId) + 1);
                 }
             }
         } catch (java.io.IOException e) {
@@ -2133,15 +2838,19 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Write all currently pending ops to the pending ops file.
+     * Write all currently pending ops to the pending ops file, dropping
+     * the tombstones and renumbering the ops by their new ordinals.
      */
     private void writePendingOperationsLocked() {
+        updateSettingsSnapshotLocked();
         final int N = mPendingOperations.size();
         FileOutputStream fos = null;
         try {
             if (N == 0) {
                 if (DEBUG_FILE) Log.v(TAG, "Truncating " + mPendingFile.getBaseFile());
                 mPendingFile.truncate();
+                mNextPendingHandle = 0;
+                mNumPendingTombstones = 0;
                 return;
             }
 
@@ -2149,14 +2858,24 @@ public class SyncStorageEngine extends Handler {
             fos = mPendingFile.startWrite();
 
             Parcel out = Parcel.obtain();
+            ArrayList<PendingOperation> ops =
+                    new ArrayList<PendingOperation>(mPendingOperations.values());
             for (int i=0; i<N; i++) {
-                PendingOperation op = mPendingOperations.get(i);
-                writePendingOperationLocked(op, out);
+                writePendingOperationLocked(ops.get(i), out);
             }
             fos.write(out.marshall());
             out.recycle();
 
             mPendingFile.finishWrite(fos);
+
+            mPendingOperations.clear();
+            for (int i=0; i<N; i++) {
+                PendingOperation op = ops.get(i);
+                op.handle = i;
+                mPendingOperations.put(i, op);
+            }
+            mNextPendingHandle = N;
+            mNumPendingTombstones = 0;
         } catch (java.io.IOException e1) {
             Log.w(TAG, "Error writing pending operations", e1);
             if (fos != null) {
@@ -2166,8 +2885,8 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Append the given operation to the pending ops file; if unable to,
-     * write all pending ops.
+     * Append the given operation to the pending ops file; if unable to, or if
+     * the append fails part way, write all pending ops.
      */
     private void appendPendingOperationLocked(PendingOperation op) {
         if (DEBUG_FILE) Log.v(TAG, "Appending to " + mPendingFile.getBaseFile());
@@ -2180,6 +2899,7 @@ public class SyncStorageEngine extends Handler {
             return;
         }
 
+        boolean failed = false;
         try {
             Parcel out = Parcel.obtain();
             writePendingOperationLocked(op, out);
@@ -2187,12 +2907,60 @@ public class SyncStorageEngine extends Handler {
             out.recycle();
         } catch (java.io.IOException e1) {
             Log.w(TAG, "Error writing pending operations", e1);
+            failed = true;
+        } finally {
+            try {
+                fos.close();
+            } catch (java.io.IOException e2) {
+            }
+        }
+
+        if (failed) {
+            // The file may now hold part of a record; rewrite it from memory
+            // so that it matches mPendingOperations again.
+            writePendingOperationsLocked();
+        }
+    }
+
+    /**
+     * Append a tombstone for the op stored at the given ordinal to the
+     * pending ops file; if unable to, or if the append fails part way, write
+     * all pending ops.
+     */
+    private void appendPendingTombstoneLocked(int handle) {
+        if (DEBUG_FILE) Log.v(TAG, "Appending tombstone to " + mPendingFile.getBaseFile());
+        FileOutputStream fos = null;
+        try {
+            fos = mPendingFile.openAppend();
+        } catch (java.io.IOException e) {
+            if (DEBUG_FILE) Log.v(TAG, "Failed append; writing full file");
+            writePendingOperationsLocked();
+            return;
+        }
+
+        boolean failed = false;
+        try {
+            Parcel out = Parcel.obtain();
+            out.writeInt(PENDING_OPERATION_TOMBSTONE);
+            out.writeInt(handle);
+            fos.write(out.marshall());
+            out.recycle();
+            mNumPendingTombstones++;
+        } catch (java.io.IOException e1) {
+            Log.w(TAG, "Error writing pending operations", e1);
+            failed = true;
         } finally {
             try {
                 fos.close();
             } catch (java.io.IOException e2) {
             }
         }
+
+        if (failed) {
+            // The file may now hold part of a record; rewrite it from memory
+            // so that it matches mPendingOperations again.
+            writePendingOperationsLocked();
+        }
     }
 
     static private byte[] flattenBundle(Bundle bundle) {
@@ -2251,7 +3019,8 @@ public class SyncStorageEngine extends Handler {
             in.unmarshall(data, 0, data.length);
             in.setDataPosition(0);
             int token;
-            int index = 0;
+            mDayStatsHead = 0;
+            mDayStatsSize = 0;
             while ((token=in.readInt()) != STATISTICS_FILE_END) {
                 if (token == STATISTICS_FILE_ITEM
                         || token == STATISTICS_FILE_ITEM_OLD) {
@@ -2259,14 +3028,18 @@ public class SyncStorageEngine extends Handler {
                     if (token == STATISTICS_FILE_ITEM_OLD) {
                         day = day - 2009 + 14245;  // Magic!
                     }
-                    DayStats ds = new DayStats(day);
-                    ds.successCount = in.readInt();
-                    ds.successTime = in.readLong();
-                    ds.failureCount = in.readInt();
-                    ds.failureTime = in.readLong();
-                    if (index < mDayStats.length) {
-                        mDayStats[index] = ds;
-                        index++;
+                    final int successCount = in.readInt();
+                    final long successTime = in.readLong();
+                    final int failureCount = in.readInt();
+                    final long failureTime = in.readLong();
+                    if (mDayStatsSize < DAY_STATS_COUNT) {
+                        // Items are stored newest first, and the head is slot 0.
+                        final int d = mDayStatsSize++;
+                        mDayStatsDay[d] = day;
+                        mDayStatsSuccessCount[d] = successCount;
+                        mDayStatsSuccessTime[d] = successTime;
+                        mDayStatsFailureCount[d] = failureCount;
+                        mDayStatsFailureTime[d] = failureTime;
                     }
                 } else {
                     // Ooops.
@@ -2284,6 +3057,7 @@ public class SyncStorageEngine extends Handler {
      */
     private void writeStatisticsLocked() {
         if (DEBUG_FILE) Log.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+        updateSettingsSnapshotLocked();
 
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
@@ -2293,18 +3067,15 @@ public class SyncStorageEngine extends Handler {
         try {
             fos = mStatisticsFile.startWrite();
             Parcel out = Parcel.obtain();
-            final int N = mDayStats.length;
+            final int N = mDayStatsSize;
             for (int i=0; i<N; i++) {
-                DayStats ds = mDayStats[i];
-                if (ds == null) {
-                    break;
-                }
+                final int d = (mDayStatsHead + i) % DAY_STATS_COUNT;
                 out.writeInt(STATISTICS_FILE_ITEM);
-                out.writeInt(ds.day);
-                out.writeInt(ds.successCount);
-                out.writeLong(ds.successTime);
-                out.writeInt(ds.failureCount);
-                out.writeLong(ds.failureTime);
+                out.writeInt(mDayStatsDay[d]);
+                out.writeInt(mDayStatsSuccessCount[d]);
+                out.writeLong(mDayStatsSuccessTime[d]);
+                out.writeInt(mDayStatsFailureCount[d]);
+                out.writeLong(mDayStatsFailureTime[d]);
             }
             out.writeInt(STATISTICS_FILE_END);
             fos.write(out.marshall());